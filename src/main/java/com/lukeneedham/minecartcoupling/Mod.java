@@ -1,17 +1,26 @@
 package com.lukeneedham.minecartcoupling;
 
-import com.lukeneedham.minecartcoupling.client.RenderCart;
+import com.lukeneedham.minecartcoupling.common.CommonProxy;
+import com.lukeneedham.minecartcoupling.common.carts.CartState;
 import com.lukeneedham.minecartcoupling.common.carts.MinecartHooks;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingHandler;
 import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestSender;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingResyncRequestMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingResyncRequestMessageHandler;
 import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessage;
 import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessageHandler;
 import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateMessage;
 import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateQueue;
 import net.minecraft.entity.item.EntityMinecart;
 import net.minecraftforge.common.MinecraftForge;
-import net.minecraftforge.fml.client.registry.RenderingRegistry;
 import net.minecraftforge.fml.common.Mod.EventHandler;
+import net.minecraftforge.fml.common.SidedProxy;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
 import net.minecraftforge.fml.relauncher.Side;
 
@@ -21,10 +30,19 @@ public class Mod {
     public static final String NAME = "Minecart Coupling";
     public static final String VERSION = "0.1.6";
 
+    @SidedProxy(
+            clientSide = "com.lukeneedham.minecartcoupling.client.ClientProxy",
+            serverSide = "com.lukeneedham.minecartcoupling.common.CommonProxy"
+    )
+    public static CommonProxy proxy;
+
     @EventHandler
     public void preInit(FMLPreInitializationEvent event) {
+        CartState.register();
         MinecraftForge.EVENT_BUS.register(MinecartHooks.INSTANCE);
         MinecraftForge.EVENT_BUS.register(CouplingHandler.getInstance());
+        MinecraftForge.EVENT_BUS.register(CouplingUpdateQueue.INSTANCE);
+        MinecraftForge.EVENT_BUS.register(CouplingDigestSender.INSTANCE);
 
         ClientServerCommunication.channel.registerMessage(
                 CouplingProgressStateMessageHandler.class,
@@ -38,11 +56,27 @@ public class Mod {
                 2,
                 Side.CLIENT
         );
+        ClientServerCommunication.channel.registerMessage(
+                CouplingSnapshotMessageHandler.class,
+                CouplingSnapshotMessage.class,
+                3,
+                Side.CLIENT
+        );
+        ClientServerCommunication.channel.registerMessage(
+                CouplingDigestMessageHandler.class,
+                CouplingDigestMessage.class,
+                4,
+                Side.CLIENT
+        );
+        ClientServerCommunication.channel.registerMessage(
+                CouplingResyncRequestMessageHandler.class,
+                CouplingResyncRequestMessage.class,
+                5,
+                Side.SERVER
+        );
 
         EntityMinecart.setCollisionHandler(MinecartHooks.INSTANCE);
 
-        if (event.getSide() == Side.CLIENT) {
-            RenderingRegistry.registerEntityRenderingHandler(EntityMinecart.class, RenderCart::new);
-        }
+        proxy.preInit(event);
     }
 }
@@ -0,0 +1,45 @@
+package com.lukeneedham.minecartcoupling;
+
+import com.lukeneedham.minecartcoupling.common.carts.physics.SolverMode;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
+import net.minecraftforge.fml.client.event.ConfigChangedEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+@Config(modid = Mod.MOD_ID)
+@net.minecraftforge.fml.common.Mod.EventBusSubscriber(modid = Mod.MOD_ID)
+public final class ModConfig {
+
+    @Config.Comment({
+            "How the couplings of a train are solved each tick.",
+            "EXPLICIT: a spring per coupling, applied one after the other.",
+            "IMPLICIT: all couplings of a train solved together, which keeps long and fast trains from oscillating."
+    })
+    public static SolverMode solver = SolverMode.EXPLICIT;
+
+    @Config.Comment({
+            "Trains with at least this many carts follow the path of their lead cart, instead of being solved as couplings.",
+            "Much cheaper for very long trains, but the carts behind the lead no longer push or pull the train.",
+            "Trains which are pushed from behind are always solved as couplings. 0 disables it."
+    })
+    @Config.RangeInt(min = 0)
+    public static int followTheLeaderLength = 0;
+
+    @Config.Comment("Trains further than this many blocks from the nearest player are only solved every few ticks. 0 disables it.")
+    @Config.RangeInt(min = 0)
+    public static int reducedSimulationDistance = 64;
+
+    @Config.Comment("The number of ticks between solves of trains beyond the reduced simulation distance.")
+    @Config.RangeInt(min = 1, max = 20)
+    public static int reducedSimulationInterval = 4;
+
+    @Config.Comment("Trains further than this many blocks from the nearest player just follow the path of their lead cart. 0 disables it.")
+    @Config.RangeInt(min = 0)
+    public static int kinematicSimulationDistance = 128;
+
+    @SubscribeEvent
+    public static void onConfigChanged(ConfigChangedEvent.OnConfigChangedEvent event) {
+        if (event.getModID().equals(Mod.MOD_ID))
+            ConfigManager.sync(Mod.MOD_ID, Config.Type.INSTANCE);
+    }
+}
@@ -0,0 +1,65 @@
+package com.lukeneedham.minecartcoupling.client;
+
+import com.lukeneedham.minecartcoupling.common.packet.ParkedActions;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessageHandler;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateMessageHandler;
+import net.minecraft.client.Minecraft;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The coupling messages are received on the network thread, but the couplings they change are read by the main thread.
+ * The message handlers only add the messages to this inbox, which is drained on the main thread at the start of each tick,
+ * applying all messages received since the last tick in one go.
+ * <p>
+ * Parts of a message naming carts which have not joined the world yet are left to {@link ParkedActions}.
+ */
+public enum ClientPacketInbox {
+    INSTANCE;
+
+    private final Queue<IMessage> inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Called on the network thread.
+     */
+    public void add(IMessage message) {
+        inbox.add(message);
+    }
+
+    @SubscribeEvent
+    public void onClientTick(TickEvent.ClientTickEvent event) {
+        if (event.phase != TickEvent.Phase.START)
+            return;
+        World world = Minecraft.getMinecraft().world;
+        if (world == null) {
+            inbox.clear();
+            ParkedActions.INSTANCE.clear();
+            return;
+        }
+
+        ParkedActions.INSTANCE.onTick(world);
+
+        IMessage message;
+        while ((message = inbox.poll()) != null) {
+            if (message instanceof CouplingUpdateMessage)
+                CouplingUpdateMessageHandler.apply((CouplingUpdateMessage) message, world);
+            else if (message instanceof CouplingSnapshotMessage)
+                CouplingSnapshotMessageHandler.apply((CouplingSnapshotMessage) message, world);
+            else if (message instanceof CouplingDigestMessage)
+                CouplingDigestMessageHandler.apply((CouplingDigestMessage) message, world);
+            else if (message instanceof CouplingProgressStateMessage)
+                CouplingProgressStateMessageHandler.apply((CouplingProgressStateMessage) message);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.lukeneedham.minecartcoupling.client;
+
+import com.lukeneedham.minecartcoupling.common.CommonProxy;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+public class ClientProxy extends CommonProxy {
+
+    @Override
+    public void preInit(FMLPreInitializationEvent event) {
+        MinecraftForge.EVENT_BUS.register(ClientPacketInbox.INSTANCE);
+        MinecraftForge.EVENT_BUS.register(CouplingRenderer.INSTANCE);
+    }
+
+    @Override
+    public void addClientMessage(IMessage message) {
+        ClientPacketInbox.INSTANCE.add(message);
+    }
+}
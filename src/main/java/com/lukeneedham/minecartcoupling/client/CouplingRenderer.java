@@ -0,0 +1,323 @@
+package com.lukeneedham.minecartcoupling.client;
+
+import com.lukeneedham.minecartcoupling.common.carts.coupling.ClientCouplingsDao;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsInProgressDao;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.renderer.BufferBuilder;
+import net.minecraft.client.renderer.GLAllocation;
+import net.minecraft.client.renderer.GlStateManager;
+import net.minecraft.client.renderer.Tessellator;
+import net.minecraft.client.renderer.culling.Frustum;
+import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.World;
+import net.minecraftforge.client.event.RenderWorldLastEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import org.lwjgl.opengl.GL11;
+
+import java.util.Map;
+
+/**
+ * Draws the strings of all couplings, and of the couplings in progress, once per frame.
+ * <p>
+ * The strings are drawn after the world, in a single buffer, rather than by the renderer of each cart.
+ * That way every type of cart gets them, and a coupling is drawn once instead of from both of its carts.
+ * Strings outside the view or too far away are skipped, and distant ones are drawn with fewer segments.
+ * <p>
+ * The shape of a coupling string only depends on the offset between its carts, so each shape is compiled
+ * into a display list once, keyed by the offset rounded to a grid, and shared by every coupling with that offset.
+ * A coupling is then drawn by translating to its first cart, at the partial tick, and calling the list,
+ * so parked and moving trains alike cost one call per coupling rather than pushing all of its vertices.
+ * The strings of couplings in progress follow the hand of the player and change every frame, so they are drawn directly.
+ */
+public enum CouplingRenderer {
+    INSTANCE;
+
+    static final float stringRed = 0.8F;
+    static final float stringGreen = 0.8F;
+    static final float stringBlue = 0.8F;
+
+    private static final double STRING_WIDTH = 0.025;
+    private static final double ATTACH_HEIGHT = 0.45;
+    private static final double COUPLING_SAG = 0.15;
+    private static final double LEASH_SAG_PER_BLOCK = 0.1;
+    private static final double MAX_RENDER_DISTANCE_SQ = 64 * 64;
+    private static final double FULL_DETAIL_DISTANCE_SQ = 16 * 16;
+    private static final double MEDIUM_DETAIL_DISTANCE_SQ = 32 * 32;
+
+    private static final int VERTICES_PER_SEGMENT = 8;
+    /**
+     * Cells per block of the grid the offset between the ends of a string is rounded to, to find its shape.
+     */
+    private static final double GRID_RESOLUTION = 16;
+    private static final int GRID_BITS = 20;
+    private static final int GRID_MASK = (1 << GRID_BITS) - 1;
+    private static final int CACHE_EXPIRY_FRAMES = 60;
+
+    /**
+     * Display lists of the coupling string shapes, by their rounded offset and detail, see {@link #getGeometryKey}.
+     */
+    private final Long2ObjectMap<StringGeometry> geometryCache = new Long2ObjectOpenHashMap<>();
+    private int frame;
+    private final Frustum frustum = new Frustum();
+    private BufferBuilder buffer;
+    private World world;
+    private float partialTicks;
+    private double cameraX, cameraY, cameraZ;
+    private int drawn;
+
+    @SubscribeEvent
+    public void onRenderWorldLast(RenderWorldLastEvent event) {
+        Minecraft mc = Minecraft.getMinecraft();
+        Entity view = mc.getRenderViewEntity();
+        if (mc.world == null || view == null)
+            return;
+        world = mc.world;
+        frame++;
+        partialTicks = event.getPartialTicks();
+        cameraX = interpolate(view.lastTickPosX, view.posX, partialTicks);
+        cameraY = interpolate(view.lastTickPosY, view.posY, partialTicks);
+        cameraZ = interpolate(view.lastTickPosZ, view.posZ, partialTicks);
+        frustum.setPosition(cameraX, cameraY, cameraZ);
+
+        GlStateManager.disableTexture2D();
+        GlStateManager.disableLighting();
+        GlStateManager.disableCull();
+
+        // Before the buffer is begun, as compiling a new shape needs it
+        ClientCouplingsDao.INSTANCE.forEachCoupling(this::addCoupling);
+
+        Tessellator tessellator = Tessellator.getInstance();
+        buffer = tessellator.getBuffer();
+        buffer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_COLOR);
+        drawn = 0;
+        for (Map.Entry<Integer, Integer> entry : CouplingsInProgressDao.CLIENT_INSTANCE.couplingInProgressMap.entrySet()) {
+            addCouplingInProgress(entry.getKey(), entry.getValue());
+        }
+        if (drawn == 0) {
+            // Nothing to upload
+            buffer.finishDrawing();
+        } else {
+            tessellator.draw();
+        }
+
+        GlStateManager.enableCull();
+        GlStateManager.enableLighting();
+        GlStateManager.enableTexture2D();
+        buffer = null;
+        world = null;
+
+        if (frame % CACHE_EXPIRY_FRAMES == 0) {
+            for (ObjectIterator<StringGeometry> it = geometryCache.values().iterator(); it.hasNext(); ) {
+                StringGeometry geometry = it.next();
+                if (frame - geometry.lastFrame > CACHE_EXPIRY_FRAMES) {
+                    GLAllocation.deleteDisplayLists(geometry.displayList);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void addCoupling(int cart1Id, int cart2Id) {
+        EntityMinecart cart1 = CartTools.getCartFromId(world, cart1Id);
+        EntityMinecart cart2 = CartTools.getCartFromId(world, cart2Id);
+        if (cart1 == null || cart2 == null)
+            return;
+        addString(
+                interpolate(cart1.lastTickPosX, cart1.posX, partialTicks),
+                interpolate(cart1.lastTickPosY, cart1.posY, partialTicks) + ATTACH_HEIGHT,
+                interpolate(cart1.lastTickPosZ, cart1.posZ, partialTicks),
+                interpolate(cart2.lastTickPosX, cart2.posX, partialTicks),
+                interpolate(cart2.lastTickPosY, cart2.posY, partialTicks) + ATTACH_HEIGHT,
+                interpolate(cart2.lastTickPosZ, cart2.posZ, partialTicks),
+                COUPLING_SAG,
+                true
+        );
+    }
+
+    /*
+     * Hand position adapted from RenderLiving.renderLeash
+     */
+    private void addCouplingInProgress(int playerId, int cartId) {
+        EntityMinecart cart = CartTools.getCartFromId(world, cartId);
+        Entity entity = world.getEntityByID(playerId);
+        if (cart == null || !(entity instanceof EntityPlayer))
+            return;
+        EntityPlayer player = (EntityPlayer) entity;
+
+        double yaw = interpolate(player.prevRotationYaw, player.rotationYaw, partialTicks * 0.5F) * 0.01745329238474369D;
+        double pitch = interpolate(player.prevRotationPitch, player.rotationPitch, partialTicks * 0.5F) * 0.01745329238474369D;
+        double cosYaw = Math.cos(yaw);
+        double sinYaw = Math.sin(yaw);
+        double cosPitch = Math.cos(pitch);
+        double handX = interpolate(player.prevPosX, player.posX, partialTicks) - cosYaw * 0.7D - sinYaw * 0.5D * cosPitch;
+        double handY = interpolate(player.prevPosY, player.posY, partialTicks) + player.getEyeHeight() - 0.3D;
+        double handZ = interpolate(player.prevPosZ, player.posZ, partialTicks) - sinYaw * 0.7D + cosYaw * 0.5D * cosPitch;
+
+        double cartX = interpolate(cart.lastTickPosX, cart.posX, partialTicks);
+        double cartY = interpolate(cart.lastTickPosY, cart.posY, partialTicks) + ATTACH_HEIGHT;
+        double cartZ = interpolate(cart.lastTickPosZ, cart.posZ, partialTicks);
+        double length = Math.sqrt((handX - cartX) * (handX - cartX) + (handY - cartY) * (handY - cartY) + (handZ - cartZ) * (handZ - cartZ));
+        addString(cartX, cartY, cartZ, handX, handY, handZ, LEASH_SAG_PER_BLOCK * length, false);
+    }
+
+    /**
+     * Adds a sagging string between two points, in world coordinates, if it is close enough and in view.
+     *
+     * @param shared true to call the display list shared by all coupling strings with the same offset,
+     *               which are compiled with {@link #COUPLING_SAG}, false to add the string to the buffer
+     */
+    private void addString(double x1, double y1, double z1, double x2, double y2, double z2, double sag, boolean shared) {
+        double midX = (x1 + x2) * 0.5 - cameraX;
+        double midY = (y1 + y2) * 0.5 - cameraY;
+        double midZ = (z1 + z2) * 0.5 - cameraZ;
+        double distanceSq = midX * midX + midY * midY + midZ * midZ;
+        if (distanceSq > MAX_RENDER_DISTANCE_SQ)
+            return;
+        // The bounds of both points, grown by the string width and down by the sag, without creating a box
+        if (!frustum.isBoxInFrustum(
+                Math.min(x1, x2) - STRING_WIDTH,
+                Math.min(y1, y2) - STRING_WIDTH - sag,
+                Math.min(z1, z2) - STRING_WIDTH,
+                Math.max(x1, x2) + STRING_WIDTH,
+                Math.max(y1, y2) + STRING_WIDTH,
+                Math.max(z1, z2) + STRING_WIDTH))
+            return;
+
+        int segments = distanceSq < FULL_DETAIL_DISTANCE_SQ ? 16 : distanceSq < MEDIUM_DETAIL_DISTANCE_SQ ? 8 : 4;
+
+        // The geometry is relative to the first point, so moving both carts only moves the string
+        double originX = x1 - cameraX;
+        double originY = y1 - cameraY;
+        double originZ = z1 - cameraZ;
+        if (!shared) {
+            float[] vertices = generateString(x2 - x1, y2 - y1, z2 - z1, sag, segments);
+            for (int i = 0; i < vertices.length; i += 3) {
+                vertex(originX + vertices[i], originY + vertices[i + 1], originZ + vertices[i + 2]);
+            }
+            drawn++;
+            return;
+        }
+
+        int gridX = toGrid(x2 - x1);
+        int gridY = toGrid(y2 - y1);
+        int gridZ = toGrid(z2 - z1);
+        long key = getGeometryKey(gridX, gridY, gridZ, segments);
+        StringGeometry geometry = geometryCache.get(key);
+        if (geometry == null) {
+            geometry = new StringGeometry(compileString(gridX, gridY, gridZ, segments));
+            geometryCache.put(key, geometry);
+        }
+        geometry.lastFrame = frame;
+        GlStateManager.pushMatrix();
+        GlStateManager.translate(originX, originY, originZ);
+        GlStateManager.callList(geometry.displayList);
+        GlStateManager.popMatrix();
+    }
+
+    /**
+     * Compiles the shape of a coupling string with the rounded offset into a new display list.
+     */
+    private static int compileString(int gridX, int gridY, int gridZ, int segments) {
+        float[] vertices = generateString(gridX / GRID_RESOLUTION, gridY / GRID_RESOLUTION, gridZ / GRID_RESOLUTION,
+                COUPLING_SAG, segments);
+        int displayList = GLAllocation.generateDisplayLists(1);
+        GlStateManager.glNewList(displayList, GL11.GL_COMPILE);
+        Tessellator tessellator = Tessellator.getInstance();
+        BufferBuilder buffer = tessellator.getBuffer();
+        buffer.begin(GL11.GL_QUADS, DefaultVertexFormats.POSITION_COLOR);
+        for (int i = 0; i < vertices.length; i += 3) {
+            buffer.pos(vertices[i], vertices[i + 1], vertices[i + 2])
+                    .color(stringRed, stringGreen, stringBlue, 1.0F).endVertex();
+        }
+        tessellator.draw();
+        GlStateManager.glEndList();
+        return displayList;
+    }
+
+    /**
+     * Packs the rounded offset and the number of segments of a string into one key. Each grid coordinate gets
+     * {@link #GRID_BITS} bits, which covers far more than the render distance, and the segments the lowest two.
+     */
+    private static long getGeometryKey(int gridX, int gridY, int gridZ, int segments) {
+        long detail = segments == 16 ? 2 : segments == 8 ? 1 : 0;
+        return ((long) (gridX & GRID_MASK) << (2 + 2 * GRID_BITS))
+                | ((long) (gridY & GRID_MASK) << (2 + GRID_BITS))
+                | ((long) (gridZ & GRID_MASK) << 2)
+                | detail;
+    }
+
+    /**
+     * Generates the quads of a string from the origin to the given offset, as x, y, z triples.
+     */
+    private static float[] generateString(double dx, double dy, double dz, double sag, int segments) {
+        float[] vertices = new float[segments * VERTICES_PER_SEGMENT * 3];
+        int index = 0;
+
+        // Horizontal offset perpendicular to the string, for the flat ribbon
+        double horizontal = Math.sqrt(dx * dx + dz * dz);
+        float sideX = (float) (horizontal < 1.0E-4 ? STRING_WIDTH : -dz / horizontal * STRING_WIDTH);
+        float sideZ = (float) (horizontal < 1.0E-4 ? 0 : dx / horizontal * STRING_WIDTH);
+        float width = (float) STRING_WIDTH;
+
+        float prevX = 0;
+        float prevY = 0;
+        float prevZ = 0;
+        for (int i = 1; i <= segments; i++) {
+            double t = (double) i / segments;
+            float x = (float) (dx * t);
+            float y = (float) (dy * t - sag * 4 * t * (1 - t));
+            float z = (float) (dz * t);
+
+            // Upright ribbon
+            index = put(vertices, index, prevX, prevY, prevZ);
+            index = put(vertices, index, prevX, prevY + width, prevZ);
+            index = put(vertices, index, x, y + width, z);
+            index = put(vertices, index, x, y, z);
+            // Flat ribbon, so the string is visible from above and below
+            index = put(vertices, index, prevX, prevY, prevZ);
+            index = put(vertices, index, prevX + sideX, prevY, prevZ + sideZ);
+            index = put(vertices, index, x + sideX, y, z + sideZ);
+            index = put(vertices, index, x, y, z);
+
+            prevX = x;
+            prevY = y;
+            prevZ = z;
+        }
+        return vertices;
+    }
+
+    private static int put(float[] vertices, int index, float x, float y, float z) {
+        vertices[index] = x;
+        vertices[index + 1] = y;
+        vertices[index + 2] = z;
+        return index + 3;
+    }
+
+    private static int toGrid(double offset) {
+        return (int) Math.round(offset * GRID_RESOLUTION);
+    }
+
+    private void vertex(double x, double y, double z) {
+        buffer.pos(x, y, z).color(stringRed, stringGreen, stringBlue, 1.0F).endVertex();
+    }
+
+    private static double interpolate(double start, double end, double pct) {
+        return start + (end - start) * pct;
+    }
+
+    private static final class StringGeometry {
+        final int displayList;
+        int lastFrame;
+
+        StringGeometry(int displayList) {
+            this.displayList = displayList;
+        }
+    }
+}
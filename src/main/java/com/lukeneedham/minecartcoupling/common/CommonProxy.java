@@ -0,0 +1,21 @@
+package com.lukeneedham.minecartcoupling.common;
+
+import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+/**
+ * The parts of the mod which differ between the client and a dedicated server.
+ * A dedicated server has no client classes, so it only ever sees this proxy.
+ */
+public class CommonProxy {
+
+    public void preInit(FMLPreInitializationEvent event) {
+    }
+
+    /**
+     * Hands a message received on the network thread to the client main thread.
+     * Only client bound messages are passed here, so there is nothing to do on a dedicated server.
+     */
+    public void addClientMessage(IMessage message) {
+    }
+}
@@ -0,0 +1,192 @@
+package com.lukeneedham.minecartcoupling.common.carts;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.UUID;
+
+/**
+ * The ordered cart ids of a train, from one end to the other.
+ * <p>
+ * The ids are kept in an array with free room at both ends, so that carts can be added to either end in constant time.
+ * Each id is mapped to an ordinal which only changes when carts in the middle of the sequence are removed,
+ * giving constant time membership, index, neighbour and end tests.
+ */
+final class CartSequence extends AbstractList<UUID> implements RandomAccess {
+    private static final int MISSING = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private UUID[] ids = new UUID[INITIAL_CAPACITY];
+    /**
+     * Array index of the first cart.
+     */
+    private int offset = INITIAL_CAPACITY / 2;
+    /**
+     * Ordinal of the first cart. The cart at index i has the ordinal firstOrdinal + i.
+     */
+    private int firstOrdinal;
+    private int size;
+    private final Object2IntMap<UUID> ordinals = new Object2IntOpenHashMap<>();
+
+    CartSequence() {
+        ordinals.defaultReturnValue(MISSING);
+    }
+
+    @Override
+    public UUID get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return ids[offset + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(@Nullable Object id) {
+        return ordinals.containsKey(id);
+    }
+
+    @Override
+    public int indexOf(@Nullable Object id) {
+        int ordinal = ordinals.getInt(id);
+        return ordinal == MISSING ? -1 : ordinal - firstOrdinal;
+    }
+
+    @Override
+    public int lastIndexOf(@Nullable Object id) {
+        return indexOf(id);
+    }
+
+    @Nullable
+    UUID first() {
+        return size == 0 ? null : ids[offset];
+    }
+
+    @Nullable
+    UUID last() {
+        return size == 0 ? null : ids[offset + size - 1];
+    }
+
+    boolean isEnd(UUID id) {
+        return size > 0 && (id.equals(ids[offset]) || id.equals(ids[offset + size - 1]));
+    }
+
+    void addFirst(UUID id) {
+        if (offset == 0)
+            makeRoom();
+        offset--;
+        firstOrdinal--;
+        size++;
+        ids[offset] = id;
+        ordinals.put(id, firstOrdinal);
+    }
+
+    void addLast(UUID id) {
+        if (offset + size == ids.length)
+            makeRoom();
+        ids[offset + size] = id;
+        ordinals.put(id, firstOrdinal + size);
+        size++;
+    }
+
+    UUID removeFirst() {
+        UUID id = get(0);
+        ordinals.removeInt(id);
+        ids[offset] = null;
+        offset++;
+        firstOrdinal++;
+        size--;
+        return id;
+    }
+
+    UUID removeLast() {
+        UUID id = get(size - 1);
+        ordinals.removeInt(id);
+        ids[offset + size - 1] = null;
+        size--;
+        return id;
+    }
+
+    /**
+     * Removes a cart, shifting the shorter side of the sequence to close the gap.
+     *
+     * @return true if the cart was part of the sequence
+     */
+    @Override
+    public boolean remove(@Nullable Object id) {
+        int index = indexOf(id);
+        if (index < 0)
+            return false;
+        ordinals.removeInt(id);
+        if (index < size / 2) {
+            for (int i = index; i > 0; i--) {
+                UUID moved = ids[offset + i - 1];
+                ids[offset + i] = moved;
+                ordinals.put(moved, firstOrdinal + i);
+            }
+            ids[offset] = null;
+            offset++;
+            firstOrdinal++;
+        } else {
+            for (int i = index; i < size - 1; i++) {
+                UUID moved = ids[offset + i + 1];
+                ids[offset + i] = moved;
+                ordinals.put(moved, firstOrdinal + i);
+            }
+            ids[offset + size - 1] = null;
+        }
+        size--;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(ids, null);
+        ordinals.clear();
+        offset = ids.length / 2;
+        firstOrdinal = 0;
+        size = 0;
+    }
+
+    /**
+     * Makes free room at both ends. A sequence that only grows at one end, while losing carts at the other,
+     * is centred again within its array; the array is only grown once it is at least half full.
+     */
+    private void makeRoom() {
+        if (size < ids.length / 2)
+            recentre();
+        else
+            reallocate(Math.max(INITIAL_CAPACITY, ids.length * 2));
+    }
+
+    /**
+     * Moves the carts to the middle of their array, clearing the slots they leave.
+     */
+    private void recentre() {
+        int newOffset = (ids.length - size) / 2;
+        System.arraycopy(ids, offset, ids, newOffset, size);
+        if (newOffset > offset)
+            Arrays.fill(ids, offset, Math.min(newOffset, offset + size), null);
+        else
+            Arrays.fill(ids, Math.max(newOffset + size, offset), offset + size, null);
+        offset = newOffset;
+    }
+
+    /**
+     * Moves the carts to a new array, centred so that there is free room at both ends.
+     */
+    private void reallocate(int capacity) {
+        UUID[] newIds = new UUID[capacity];
+        int newOffset = (capacity - size) / 2;
+        System.arraycopy(ids, offset, newIds, newOffset, size);
+        ids = newIds;
+        offset = newOffset;
+    }
+}
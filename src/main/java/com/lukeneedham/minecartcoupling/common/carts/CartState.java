@@ -0,0 +1,231 @@
+package com.lukeneedham.minecartcoupling.common.carts;
+
+import com.lukeneedham.minecartcoupling.Mod;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingKind;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingType;
+import com.lukeneedham.minecartcoupling.common.util.NBTPlugin;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.EnumFacing;
+import net.minecraft.util.ResourceLocation;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.capabilities.CapabilityInject;
+import net.minecraftforge.common.capabilities.CapabilityManager;
+import net.minecraftforge.common.capabilities.ICapabilitySerializable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.UUID;
+
+/**
+ * The coupling, train and hook state of a cart, attached to every minecart as a capability.
+ * <p>
+ * The state is kept in primitive fields, and only converted to NBT when the cart is saved.
+ * Carts saved before the capability existed kept their state in the entity data, under the tags of
+ * {@link CouplingType}, {@link Train#TRAIN_NBT} and the legacy names below. Those tags are moved
+ * into the capability when such a cart joins the world, or the first time its state is read before that.
+ * As the tags are removed once moved, a cart which still has them was never migrated, even if it was saved
+ * with the capability since, so its tags always take precedence.
+ */
+public final class CartState {
+    public static final ResourceLocation KEY = new ResourceLocation(Mod.MOD_ID, "cart_state");
+
+    private static final String LEGACY_LAUNCHED = "Launched";
+    private static final String LEGACY_MOUNT_PREVENTION = "MountPrevention";
+    private static final String[] LEGACY_TIMERS = {"couplingA_timer", "couplingB_timer"};
+
+    @CapabilityInject(CartState.class)
+    public static Capability<CartState> CAPABILITY = null;
+
+    /**
+     * Persistent ids of the coupled carts, per coupling slot, as most and least significant bits. 0, 0 if not coupled.
+     */
+    private final long[] couplings = new long[CouplingType.VALUES.length * 2];
+    /**
+     * The {@link CouplingKind} of each coupling slot.
+     */
+    private final byte[] couplingKinds = new byte[CouplingType.VALUES.length];
+    private long trainMost, trainLeast;
+    /**
+     * The train id as an object, kept so the per tick train lookup does not create one.
+     */
+    private @Nullable UUID train;
+    public int launched;
+    public int mountPrevention;
+    /**
+     * Ticks the coupled cart of each slot has been in another dimension.
+     */
+    public final short[] couplingTimers = new short[CouplingType.VALUES.length];
+    private boolean legacyChecked;
+
+    public static void register() {
+        CapabilityManager.INSTANCE.register(CartState.class, new Capability.IStorage<CartState>() {
+            @Override
+            public NBTBase writeNBT(Capability<CartState> capability, CartState instance, EnumFacing side) {
+                return instance.writeToNBT();
+            }
+
+            @Override
+            public void readNBT(Capability<CartState> capability, CartState instance, EnumFacing side, NBTBase nbt) {
+                instance.readFromNBT((NBTTagCompound) nbt);
+            }
+        }, CartState::new);
+    }
+
+    public static CartState get(EntityMinecart cart) {
+        CartState state = cart.getCapability(CAPABILITY, null);
+        if (state == null)
+            throw new IllegalStateException("Minecart without cart state: " + cart);
+        if (!state.legacyChecked)
+            state.migrateLegacy(cart.getEntityData());
+        return state;
+    }
+
+    public long getCouplingMost(CouplingType type) {
+        return couplings[type.ordinal() * 2];
+    }
+
+    public long getCouplingLeast(CouplingType type) {
+        return couplings[type.ordinal() * 2 + 1];
+    }
+
+    public CouplingKind getCouplingKind(CouplingType type) {
+        return CouplingKind.fromOrdinal(couplingKinds[type.ordinal()]);
+    }
+
+    public void setCoupling(CouplingType type, UUID id, CouplingKind kind) {
+        couplings[type.ordinal() * 2] = id.getMostSignificantBits();
+        couplings[type.ordinal() * 2 + 1] = id.getLeastSignificantBits();
+        couplingKinds[type.ordinal()] = (byte) kind.ordinal();
+    }
+
+    public void clearCoupling(CouplingType type) {
+        couplings[type.ordinal() * 2] = 0;
+        couplings[type.ordinal() * 2 + 1] = 0;
+        couplingKinds[type.ordinal()] = 0;
+    }
+
+    public boolean hasTrain() {
+        return trainMost != 0 || trainLeast != 0;
+    }
+
+    public boolean isInTrain(UUID train) {
+        return trainMost == train.getMostSignificantBits() && trainLeast == train.getLeastSignificantBits();
+    }
+
+    public @Nullable
+    UUID getTrain() {
+        if (train == null && hasTrain())
+            train = new UUID(trainMost, trainLeast);
+        return train;
+    }
+
+    public void setTrain(UUID train) {
+        trainMost = train.getMostSignificantBits();
+        trainLeast = train.getLeastSignificantBits();
+        this.train = train;
+    }
+
+    public void clearTrain() {
+        trainMost = 0;
+        trainLeast = 0;
+        train = null;
+    }
+
+    private void migrateLegacy(NBTTagCompound data) {
+        legacyChecked = true;
+        for (CouplingType type : CouplingType.VALUES) {
+            if (data.hasKey(type.tagHigh) || data.hasKey(type.tagLow)) {
+                couplings[type.ordinal() * 2] = data.getLong(type.tagHigh);
+                couplings[type.ordinal() * 2 + 1] = data.getLong(type.tagLow);
+                data.removeTag(type.tagHigh);
+                data.removeTag(type.tagLow);
+            }
+            if (data.hasKey(LEGACY_TIMERS[type.ordinal()])) {
+                couplingTimers[type.ordinal()] = data.getShort(LEGACY_TIMERS[type.ordinal()]);
+                data.removeTag(LEGACY_TIMERS[type.ordinal()]);
+            }
+        }
+        UUID train = NBTPlugin.readUUID(data, Train.TRAIN_NBT);
+        if (train != null) {
+            setTrain(train);
+            data.removeTag(Train.TRAIN_NBT);
+        }
+        if (data.hasKey(LEGACY_LAUNCHED)) {
+            launched = data.getInteger(LEGACY_LAUNCHED);
+            data.removeTag(LEGACY_LAUNCHED);
+        }
+        if (data.hasKey(LEGACY_MOUNT_PREVENTION)) {
+            mountPrevention = data.getInteger(LEGACY_MOUNT_PREVENTION);
+            data.removeTag(LEGACY_MOUNT_PREVENTION);
+        }
+    }
+
+    private NBTTagCompound writeToNBT() {
+        NBTTagCompound data = new NBTTagCompound();
+        for (CouplingType type : CouplingType.VALUES) {
+            int slot = type.ordinal();
+            data.setLong(type.tagHigh, couplings[slot * 2]);
+            data.setLong(type.tagLow, couplings[slot * 2 + 1]);
+        }
+        data.setByteArray("couplingKinds", couplingKinds.clone());
+        int[] timers = new int[couplingTimers.length];
+        for (int slot = 0; slot < timers.length; slot++) {
+            timers[slot] = couplingTimers[slot];
+        }
+        data.setIntArray("couplingTimers", timers);
+        data.setLong("trainMost", trainMost);
+        data.setLong("trainLeast", trainLeast);
+        data.setInteger("launched", launched);
+        data.setInteger("mountPrevention", mountPrevention);
+        return data;
+    }
+
+    private void readFromNBT(NBTTagCompound data) {
+        for (CouplingType type : CouplingType.VALUES) {
+            int slot = type.ordinal();
+            couplings[slot * 2] = data.getLong(type.tagHigh);
+            couplings[slot * 2 + 1] = data.getLong(type.tagLow);
+        }
+        int[] timers = data.getIntArray("couplingTimers");
+        for (int slot = 0; slot < couplingTimers.length; slot++) {
+            couplingTimers[slot] = slot < timers.length ? (short) timers[slot] : 0;
+        }
+        // Missing in older saves, where every coupling is a spring
+        byte[] kinds = data.getByteArray("couplingKinds");
+        System.arraycopy(kinds, 0, couplingKinds, 0, Math.min(kinds.length, couplingKinds.length));
+        trainMost = data.getLong("trainMost");
+        trainLeast = data.getLong("trainLeast");
+        train = null;
+        launched = data.getInteger("launched");
+        mountPrevention = data.getInteger("mountPrevention");
+        // The entity data may still hold legacy tags, if the cart was saved before its state was first read
+        legacyChecked = false;
+    }
+
+    public static final class Provider implements ICapabilitySerializable<NBTTagCompound> {
+        private final CartState state = new CartState();
+
+        @Override
+        public boolean hasCapability(@NotNull Capability<?> capability, @Nullable EnumFacing facing) {
+            return capability == CAPABILITY;
+        }
+
+        @Override
+        @Nullable
+        public <T> T getCapability(@NotNull Capability<T> capability, @Nullable EnumFacing facing) {
+            return capability == CAPABILITY ? CAPABILITY.cast(state) : null;
+        }
+
+        @Override
+        public NBTTagCompound serializeNBT() {
+            return state.writeToNBT();
+        }
+
+        @Override
+        public void deserializeNBT(NBTTagCompound nbt) {
+            state.readFromNBT(nbt);
+        }
+    }
+}
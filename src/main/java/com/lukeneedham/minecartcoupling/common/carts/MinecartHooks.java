@@ -9,9 +9,17 @@
  -----------------------------------------------------------------------------*/
 package com.lukeneedham.minecartcoupling.common.carts;
 
+import com.lukeneedham.minecartcoupling.common.carts.coupling.ClientCouplingsDao;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingType;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsDao;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsInProgressDao;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.ICouplingsDao;
+import com.lukeneedham.minecartcoupling.common.carts.physics.CartPhysics;
+import com.lukeneedham.minecartcoupling.common.packet.ParkedActions;
 import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressState;
+import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateQueue;
 import com.lukeneedham.minecartcoupling.common.util.*;
 import net.minecraft.block.Block;
 import net.minecraft.block.material.Material;
@@ -22,21 +30,29 @@ import net.minecraft.entity.item.EntityItem;
 import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.entity.monster.EntityIronGolem;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.util.SoundCategory;
 import net.minecraft.util.SoundEvent;
 import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.ClassInheritanceMultiMap;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.IWorldEventListener;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
 import net.minecraftforge.common.IMinecartCollisionHandler;
+import net.minecraftforge.event.AttachCapabilitiesEvent;
 import net.minecraftforge.event.entity.minecart.MinecartUpdateEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.world.ChunkWatchEvent;
 import net.minecraftforge.event.world.WorldEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListener {
     INSTANCE;
@@ -53,7 +69,7 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
     private static final boolean cartsCollideWithItems = false;
 
     public boolean canMount(EntityMinecart cart) {
-        return cart.getEntityData().getInteger("MountPrevention") <= 0;
+        return CartState.get(cart).mountPrevention <= 0;
     }
 
     @Override
@@ -83,11 +99,11 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
                 other.startRiding(cart);
         }
 
-        Vec2D cartPos = new Vec2D(cart.posX, cart.posZ);
-        Vec2D otherPos = new Vec2D(other.posX, other.posZ);
-
-        Vec2D unit = Vec2D.subtract(otherPos, cartPos);
-        unit.normalize();
+        double deltaX = other.posX - cart.posX;
+        double deltaZ = other.posZ - cart.posZ;
+        double length = CartPhysics.length(deltaX, deltaZ);
+        double unitX = CartPhysics.unit(deltaX, length);
+        double unitZ = CartPhysics.unit(deltaZ, length);
 
         double distance = cart.getDistance(other);
         double depth = distance - OPTIMAL_DISTANCE;
@@ -96,23 +112,24 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
         double forceZ = 0;
 
         if (depth < 0) {
+            Train.wake(cart);
+            if (other instanceof EntityMinecart)
+                Train.wake((EntityMinecart) other);
+
             double spring = isPlayer ? COEF_SPRING_PLAYER : COEF_SPRING;
-            double penaltyX = spring * depth * unit.getX();
-            double penaltyZ = spring * depth * unit.getY();
+            double penaltyX = spring * depth * unitX;
+            double penaltyZ = spring * depth * unitZ;
 
             forceX += penaltyX;
             forceZ += penaltyZ;
 
             if (!isPlayer) {
-                double impulseX = unit.getX();
-                double impulseZ = unit.getY();
+                double impulseX = unitX;
+                double impulseZ = unitZ;
                 impulseX *= -(1.0 + COEF_RESTITUTION);
                 impulseZ *= -(1.0 + COEF_RESTITUTION);
 
-                Vec2D cartVel = new Vec2D(cart.motionX, cart.motionZ);
-                Vec2D otherVel = new Vec2D(other.motionX, other.motionZ);
-
-                double dot = Vec2D.subtract(otherVel, cartVel).dotProduct(unit);
+                double dot = CartPhysics.relativeSpeed(cart.motionX, cart.motionZ, other.motionX, other.motionZ, unitX, unitZ);
 
                 impulseX *= dot;
                 impulseZ *= dot;
@@ -133,13 +150,11 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
                 other.addVelocity(-forceX, 0, -forceZ);
             }
         } else {
-            Vec2D cartVel = new Vec2D(cart.motionX + forceX, cart.motionZ + forceZ);
-            Vec2D otherVel = new Vec2D(other.motionX - forceX, other.motionZ - forceZ);
-
-            double dot = Vec2D.subtract(otherVel, cartVel).dotProduct(unit);
+            double dot = CartPhysics.relativeSpeed(cart.motionX + forceX, cart.motionZ + forceZ,
+                    other.motionX - forceX, other.motionZ - forceZ, unitX, unitZ);
 
-            double dampX = COEF_DAMPING * dot * unit.getX();
-            double dampZ = COEF_DAMPING * dot * unit.getY();
+            double dampX = COEF_DAMPING * dot * unitX;
+            double dampZ = COEF_DAMPING * dot * unitZ;
 
             forceX += dampX;
             forceZ += dampZ;
@@ -180,7 +195,7 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
     }
 
     private void land(EntityMinecart cart) {
-        cart.getEntityData().setInteger("Launched", 0);
+        CartState.get(cart).launched = 0;
         cart.setMaxSpeedAirLateral(EntityMinecart.defaultMaxSpeedAirLateral);
         cart.setMaxSpeedAirVertical(EntityMinecart.defaultMaxSpeedAirVertical);
         cart.setDragAir(EntityMinecart.defaultDragAir);
@@ -190,7 +205,7 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
     @SubscribeEvent
     public void onMinecartUpdate(MinecartUpdateEvent event) {
         EntityMinecart cart = event.getMinecart();
-        NBTTagCompound data = cart.getEntityData();
+        CartState state = CartState.get(cart);
 
         // Fix flip
         float distance = MathTools.getDistanceBetweenAngles(cart.rotationYaw, cart.prevRotationYaw);
@@ -210,7 +225,7 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
         }
 
         Block block = WorldPlugin.getBlock(cart.world, event.getPos());
-        int launched = data.getInteger("Launched");
+        int launched = state.launched;
         if (TrackTools.isRailBlock(block)) {
             cart.fallDistance = 0;
             if (cart.isBeingRidden())
@@ -218,26 +233,76 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
             if (launched > 1)
                 land(cart);
         } else if (launched == 1) {
-            data.setInteger("Launched", 2);
+            state.launched = 2;
             cart.setCanUseRail(true);
         } else if (launched > 1 && (cart.onGround || cart.isInsideOfMaterial(Material.CIRCUITS)))
             land(cart);
 
-        int mountPrevention = data.getInteger("MountPrevention");
-        if (mountPrevention > 0) {
-            mountPrevention--;
-            data.setInteger("MountPrevention", mountPrevention);
-        }
+        if (state.mountPrevention > 0)
+            state.mountPrevention--;
 
         cart.motionX = Math.copySign(Math.min(Math.abs(cart.motionX), 9.5), cart.motionX);
         cart.motionY = Math.copySign(Math.min(Math.abs(cart.motionY), 9.5), cart.motionY);
         cart.motionZ = Math.copySign(Math.min(Math.abs(cart.motionZ), 9.5), cart.motionZ);
     }
 
+    @SubscribeEvent
+    public void onAttachCapabilities(AttachCapabilitiesEvent<Entity> event) {
+        if (event.getObject() instanceof EntityMinecart)
+            event.addCapability(CartState.KEY, new CartState.Provider());
+    }
+
     @SubscribeEvent
     public void onWorldCreate(WorldEvent.Load event) {
-        if (Game.isHost(event.getWorld())) {
-            event.getWorld().addEventListener(this);
+        // Registered on the client as well, to keep its cart cache up to date
+        CartCache.forWorld(event.getWorld());
+        event.getWorld().addEventListener(this);
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(WorldEvent.Unload event) {
+        CartCache.unload(event.getWorld());
+        if (Game.isClient(event.getWorld())) {
+            ClientCouplingsDao.INSTANCE.clear();
+            ParkedActions.INSTANCE.clear();
+        }
+    }
+
+    /**
+     * A player who starts watching a chunk is sent the couplings of the trains in it,
+     * rather than relying on them having seen every change.
+     */
+    @SubscribeEvent
+    public void onChunkWatch(ChunkWatchEvent.Watch event) {
+        EntityPlayerMP player = event.getPlayer();
+        ChunkPos pos = event.getChunk();
+        Chunk chunk = player.world.getChunkProvider().getLoadedChunk(pos.x, pos.z);
+        if (chunk == null)
+            return;
+        for (ClassInheritanceMultiMap<Entity> entities : chunk.getEntityLists()) {
+            for (EntityMinecart cart : entities.getByClass(EntityMinecart.class)) {
+                if (cart.isEntityAlive())
+                    Train.get(cart).ifPresent(train -> CouplingUpdateQueue.INSTANCE.addSnapshot(player, train));
+            }
+        }
+    }
+
+    /**
+     * A player who starts tracking a cart has not received any of its earlier coupling updates, so catch them up.
+     */
+    @SubscribeEvent
+    public void onStartTracking(PlayerEvent.StartTracking event) {
+        if (!(event.getTarget() instanceof EntityMinecart) || !(event.getEntityPlayer() instanceof EntityPlayerMP))
+            return;
+        EntityMinecart cart = (EntityMinecart) event.getTarget();
+        EntityPlayerMP player = (EntityPlayerMP) event.getEntityPlayer();
+        Train.get(cart).ifPresent(train -> CouplingUpdateQueue.INSTANCE.addSnapshot(player, train));
+
+        Integer couplingPlayerId = CouplingsInProgressDao.SERVER_INSTANCE.getPlayerCouplingMinecart(cart.getEntityId());
+        if (couplingPlayerId != null) {
+            ClientServerCommunication.channel.sendTo(new CouplingProgressStateMessage(
+                    new CouplingProgressState.Started(cart.getEntityId(), couplingPlayerId)
+            ), player);
         }
     }
 
@@ -246,11 +311,26 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
         // Fix couplings for killed carts
         // Unloaded entities are not "isDead"
         if (Game.isHost(entityIn.world) && !entityIn.isEntityAlive() && entityIn instanceof EntityMinecart) {
-            // We only mark Trains for deletion here, this event seems to be called from outside the server thread.
-            Train.get(((EntityMinecart) entityIn)).ifPresent(Train::kill);
             EntityMinecart minecart = (EntityMinecart) entityIn;
+            List<EntityMinecart> coupledCarts = new ArrayList<>(CouplingType.VALUES.length);
+            for (CouplingType type : CouplingType.VALUES) {
+                EntityMinecart other = CouplingsDao.SERVER_INSTANCE.getCoupledCart(minecart, type);
+                if (other != null)
+                    coupledCarts.add(other);
+            }
             CouplingsDao.SERVER_INSTANCE.breakCouplings(minecart);
-            ClientServerCommunication.sendAllCouplingsBrokenUpdate(minecart.getEntityId());
+            Train.onCartKilled(minecart);
+            ClientServerCommunication.sendAllCouplingsBrokenUpdate(minecart, coupledCarts);
+        }
+        if (entityIn instanceof EntityMinecart) {
+            if (Game.isHost(entityIn.world))
+                CouplingsDao.SERVER_INSTANCE.onCartRemoved((EntityMinecart) entityIn);
+            else
+                ClientCouplingsDao.INSTANCE.onCartRemoved(entityIn.getEntityId());
+            // The world may already have been unloaded, and its cache must not be created again
+            CartCache cache = CartCache.get(entityIn.world);
+            if (cache != null)
+                cache.remove((EntityMinecart) entityIn);
         }
     }
 
@@ -284,6 +364,15 @@ public enum MinecartHooks implements IMinecartCollisionHandler, IWorldEventListe
 
     @Override
     public void onEntityAdded(@NotNull Entity entityIn) {
+        if (entityIn instanceof EntityMinecart) {
+            CartCache.forWorld(entityIn.world).add((EntityMinecart) entityIn);
+            if (Game.isHost(entityIn.world)) {
+                // Moves any legacy tags into the cart state, before the cart can be saved again without them
+                CartState.get((EntityMinecart) entityIn);
+                Train.onCartAdded((EntityMinecart) entityIn);
+            } else
+                ParkedActions.INSTANCE.onCartSpawned();
+        }
     }
 
     @Override
@@ -1,6 +1,7 @@
 package com.lukeneedham.minecartcoupling.common.carts;
 
 import com.google.common.collect.BiMap;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingKind;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsDao;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsInProgressDao;
 import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
@@ -10,7 +11,6 @@ import com.lukeneedham.minecartcoupling.common.util.InvTools;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.entity.player.EntityPlayer;
-import net.minecraft.init.Items;
 import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
 import net.minecraft.util.text.TextComponentString;
@@ -36,20 +36,23 @@ public class MinecartInteractHandler {
         }
 
         EntityMinecart minecart = (EntityMinecart) target;
+        Train.wake(minecart);
         CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
 
         EntityMinecart coupledCartA = lm.getCoupledCartA(minecart);
         EntityMinecart coupledCartB = lm.getCoupledCartB(minecart);
 
         if (coupledCartA != null) {
+            Item dropped = lm.getCouplingKind(minecart, coupledCartA).getItem();
             lm.breakCoupling(minecart, coupledCartA);
-            ClientServerCommunication.sendCouplingBrokenUpdate(minecart.getEntityId(), coupledCartA.getEntityId());
-            minecart.dropItem(Items.STRING, 1);
+            ClientServerCommunication.sendCouplingBrokenUpdate(minecart, coupledCartA);
+            minecart.dropItem(dropped, 1);
         }
         if (coupledCartB != null) {
+            Item dropped = lm.getCouplingKind(minecart, coupledCartB).getItem();
             lm.breakCoupling(minecart, coupledCartB);
-            ClientServerCommunication.sendCouplingBrokenUpdate(minecart.getEntityId(), coupledCartB.getEntityId());
-            minecart.dropItem(Items.STRING, 1);
+            ClientServerCommunication.sendCouplingBrokenUpdate(minecart, coupledCartB);
+            minecart.dropItem(dropped, 1);
         }
     }
 
@@ -58,20 +61,24 @@ public class MinecartInteractHandler {
         if (Game.isClient(event.getPlayer().world)) {
             return;
         }
+        Train.wake(event.getMinecart());
         ItemStack itemStack = event.getItem();
         if (itemStack.isEmpty()) {
             return;
         }
-        Item item = itemStack.getItem();
-        if (item != Items.STRING) {
+        CouplingKind kind = CouplingKind.fromItem(itemStack.getItem());
+        if (kind == null) {
             return;
         }
         event.setCanceled(true);
         EntityMinecart minecart = event.getMinecart();
-        coupleCart(event.getPlayer(), itemStack, minecart);
+        coupleCart(event.getPlayer(), itemStack, kind, minecart);
     }
 
-    private static void coupleCart(EntityPlayer player, ItemStack stringStack, EntityMinecart cart) {
+    /**
+     * The coupling is made with the item used on the second cart, which decides its kind.
+     */
+    private static void coupleCart(EntityPlayer player, ItemStack couplingStack, CouplingKind kind, EntityMinecart cart) {
         BiMap<Integer, Integer> couplingInProgressMap = CouplingsInProgressDao.SERVER_INSTANCE.couplingInProgressMap;
         @Nullable Integer lastId = couplingInProgressMap.remove(player.getEntityId());
 
@@ -91,17 +98,18 @@ public class MinecartInteractHandler {
             CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
             boolean used;
             if (lm.areCoupled(cart, last, false)) {
+                Item dropped = lm.getCouplingKind(cart, last).getItem();
                 lm.breakCoupling(cart, last);
-                ClientServerCommunication.sendCouplingBrokenUpdate(cart.getEntityId(), last.getEntityId());
+                ClientServerCommunication.sendCouplingBrokenUpdate(cart, last);
                 used = true;
                 stateType = CouplingProgressState.Broken.TYPE;
-                cart.dropItem(Items.STRING, 1);
+                cart.dropItem(dropped, 1);
             } else {
-                used = lm.createCoupling(last, cart);
-                ClientServerCommunication.sendCouplingCreationUpdate(last.getEntityId(), cart.getEntityId());
+                used = lm.createCoupling(last, cart, kind);
+                ClientServerCommunication.sendCouplingCreationUpdate(last, cart);
                 if (used) {
                     stateType = CouplingProgressState.Created.TYPE;
-                    InvTools.depleteItem(stringStack);
+                    InvTools.depleteItem(couplingStack);
                 }
             }
             if (!used) {
@@ -109,7 +117,7 @@ public class MinecartInteractHandler {
             }
         }
 
-        ClientServerCommunication.sendCouplingProgressState(stateType, cart.getEntityId(), player.getEntityId());
+        ClientServerCommunication.sendCouplingProgressState(stateType, cart, player);
     }
 
 }
@@ -11,11 +11,14 @@ package com.lukeneedham.minecartcoupling.common.carts;
 
 import com.google.common.collect.ForwardingMap;
 import com.google.common.collect.MapMaker;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingType;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsDao;
 import com.lukeneedham.minecartcoupling.common.util.CartTools;
 import com.lukeneedham.minecartcoupling.common.util.Game;
 import com.lukeneedham.minecartcoupling.common.util.NBTPlugin;
 import com.lukeneedham.minecartcoupling.common.util.Streams;
+import it.unimi.dsi.fastutil.objects.Object2FloatMap;
+import it.unimi.dsi.fastutil.objects.Object2FloatOpenHashMap;
 import net.minecraft.entity.item.EntityMinecart;
 import net.minecraft.nbt.NBTTagCompound;
 import net.minecraft.nbt.NBTTagList;
@@ -38,13 +41,39 @@ public final class Train implements Iterable<EntityMinecart> {
     public static final String TRAIN_NBT = "rcTrain";
 
     private final UUID uuid;
-    private final LinkedList<UUID> carts = new LinkedList<>();
+    private final CartSequence carts = new CartSequence();
     private final List<UUID> safeCarts = Collections.unmodifiableList(carts);
     private final Set<UUID> locks = new HashSet<>();
     private @Nullable
     World world;
     private boolean dirty = true;
     private boolean isDead;
+    /**
+     * Bumped whenever the membership of the train or the train tags of its carts change,
+     * or a cart which may belong to it is loaded.
+     */
+    private int version;
+    /**
+     * Set when the couplings between the carts changed, and the train has to be rebuilt from its carts.
+     */
+    private boolean broken;
+    private int validatedVersion = -1;
+    /**
+     * The max rail speed of each cart, as last reported by the cart itself.
+     */
+    private final Object2FloatMap<UUID> cartMaxSpeeds = new Object2FloatOpenHashMap<>();
+    /**
+     * The lowest max rail speed of all carts, and how many carts share it.
+     */
+    private float maxSpeed = Float.MAX_VALUE;
+    private int maxSpeedCount;
+    private boolean maxSpeedDirty;
+    /**
+     * A sleeping train is at rest, and skips coupling physics until something wakes it.
+     */
+    private boolean asleep;
+    private int sleptVersion;
+    private int restingTicks;
 
     Train(EntityMinecart cart) {
         this(UUID.randomUUID(),
@@ -56,8 +85,12 @@ public final class Train implements Iterable<EntityMinecart> {
 
     Train(UUID id, Collection<UUID> carts, Set<UUID> locks) {
         this.uuid = id;
-        this.carts.addAll(carts);
+        for (UUID cart : carts) {
+            if (!this.carts.contains(cart))
+                this.carts.addLast(cart);
+        }
         this.locks.addAll(locks);
+        this.cartMaxSpeeds.defaultReturnValue(Float.NaN);
     }
 
     public static void printDebug(String msg, Object... args) {
@@ -69,26 +102,133 @@ public final class Train implements Iterable<EntityMinecart> {
     }
 
     public static Optional<Train> get(@Nullable EntityMinecart cart) {
+        return Optional.ofNullable(getOrNull(cart));
+    }
+
+    /**
+     * Same as {@link #get}, but without the {@link Optional}, for the lookups done for every cart every tick.
+     *
+     * @return the train of the cart, or null on the client
+     */
+    public static @Nullable Train getOrNull(@Nullable EntityMinecart cart) {
         if (cart == null)
-            return Optional.empty();
-        return getManager(cart.world).map(manager -> {
-            Game.requiresServerThread();
-            Train train = manager.get(getTrainUUID(cart));
-            if (train == null) {
-                train = new Train(cart);
-                manager.put(train.uuid, train);
-                printDebug("Creating new train object: {0}", train);
-            } else {
-                train.world = cart.world;
-                if (train.isDead || !train.contains(cart) || train.isInvalid()) {
-                    train.kill();
-                    return null;
-                }
+            return null;
+        Manager manager = Manager.find(cart.world);
+        if (manager == null)
+            return null;
+        Game.requiresServerThread();
+        Train train = manager.get(getTrainUUID(cart));
+        if (train != null) {
+            train.world = cart.world;
+            if (train.isDead) {
+                manager.remove(train.uuid);
+                train = null;
+            } else if (!train.contains(cart)) {
+                // The cart was split off from this train
+                train = null;
+            } else if (!train.isValid()) {
+                // Repair in place, so that the train keeps its identity
+                printDebug("Repairing train object: {0}", train);
+                train.rebuild(cart);
+                train.markValidated();
             }
-            return train;
+        }
+        if (train == null) {
+            train = new Train(cart);
+            train.markValidated();
+            manager.put(train.uuid, train);
+            printDebug("Creating new train object: {0}", train);
+        }
+        return train;
+    }
+
+    /**
+     * Called when a cart is added to the world, or loaded with its chunk.
+     * Its train tag may disagree with the trains in memory. Only the train named by its tag and the trains
+     * of its coupled carts can list it, so only those are validated again.
+     */
+    public static void onCartAdded(EntityMinecart cart) {
+        Manager manager = Manager.find(cart.world);
+        if (manager == null)
+            return;
+        manager.invalidate(getTrainUUID(cart));
+        CartState state = CartState.get(cart);
+        for (CouplingType type : CouplingType.VALUES) {
+            long most = state.getCouplingMost(type);
+            long least = state.getCouplingLeast(type);
+            if (most == 0 && least == 0)
+                continue;
+            EntityMinecart coupled = CartTools.getCartFromUUID(cart.world, new UUID(most, least));
+            if (coupled != null)
+                manager.invalidate(getTrainUUID(coupled));
+        }
+    }
+
+    /**
+     * Called when a cart is killed, after its couplings were broken. Removes it from its train.
+     * If the train is left with other carts, the couplings could not all be broken, and the train will be rebuilt.
+     */
+    public static void onCartKilled(EntityMinecart cart) {
+        getTrainRaw(cart).ifPresent(train -> {
+            train.release(cart.getPersistentID());
+            if (!train.isEmpty())
+                train.markBroken();
         });
     }
 
+    /**
+     * Called when two carts were coupled. Joins their trains by splicing the shorter train onto the end of the longer one.
+     * Only the carts of the shorter train have their tags rewritten.
+     */
+    public static void onCoupled(EntityMinecart cart1, EntityMinecart cart2) {
+        Optional<Train> train1 = get(cart1);
+        Optional<Train> train2 = get(cart2);
+        if (!train1.isPresent() || !train2.isPresent() || train1.get() == train2.get())
+            return;
+        boolean firstIsLonger = train1.get().size() >= train2.get().size();
+        Train longer = firstIsLonger ? train1.get() : train2.get();
+        Train shorter = firstIsLonger ? train2.get() : train1.get();
+        EntityMinecart longerJoint = firstIsLonger ? cart1 : cart2;
+        EntityMinecart shorterJoint = firstIsLonger ? cart2 : cart1;
+        if (!longer.splice(longerJoint, shorter, shorterJoint)) {
+            // The carts are not at the ends of their trains, the trains are out of date
+            longer.markBroken();
+            shorter.markBroken();
+        }
+    }
+
+    /**
+     * Called when two carts were uncoupled. Splits their train between the two carts.
+     * The shorter side becomes a new train, and only its carts have their tags rewritten.
+     */
+    public static void onUncoupled(EntityMinecart cart1, EntityMinecart cart2) {
+        getTrainRaw(cart1).filter(train -> !train.isDead && !train.broken).ifPresent(train -> {
+            int index1 = train.carts.indexOf(cart1.getPersistentID());
+            int index2 = train.carts.indexOf(cart2.getPersistentID());
+            if (index1 < 0 || index2 < 0)
+                return;
+            if (Math.abs(index1 - index2) != 1) {
+                // The carts are not neighbours, the train is out of date
+                train.markBroken();
+                return;
+            }
+            train.split(Math.max(index1, index2));
+        });
+    }
+
+    /**
+     * Returns all trains known in the world. Always empty on the client.
+     */
+    public static Collection<Train> getTrains(World world) {
+        return getManager(world).map(manager -> {
+            Collection<Train> trains = manager.values();
+            for (Train train : trains) {
+                train.world = world;
+            }
+            return trains;
+        }).orElse(Collections.emptyList());
+    }
+
     private static Optional<Train> getTrainRaw(@Nullable EntityMinecart cart) {
         if (cart == null)
             return Optional.empty();
@@ -111,8 +251,7 @@ public final class Train implements Iterable<EntityMinecart> {
 
     public static @Nullable
     UUID getTrainUUID(EntityMinecart cart) {
-        NBTTagCompound nbt = cart.getEntityData();
-        return NBTPlugin.readUUID(nbt, TRAIN_NBT);
+        return CartState.get(cart).getTrain();
     }
 
     public static boolean isPartOfTrain(EntityMinecart cart) {
@@ -152,12 +291,36 @@ public final class Train implements Iterable<EntityMinecart> {
     }
 
     public static void removeTrainTag(EntityMinecart cart) {
-        cart.getEntityData().removeTag(TRAIN_NBT);
+        CartState.get(cart).clearTrain();
     }
 
     public void addTrainTag(EntityMinecart cart) {
-        UUID trainId = getUUID();
-        NBTPlugin.writeUUID(cart.getEntityData(), TRAIN_NBT, trainId);
+        CartState.get(cart).setTrain(getUUID());
+        version++;
+    }
+
+    private void removeOwnTrainTag(EntityMinecart cart) {
+        CartState state = CartState.get(cart);
+        if (state.isInTrain(uuid)) {
+            state.clearTrain();
+            version++;
+        }
+    }
+
+    /**
+     * Removes a cart that is now part of another train, or has been killed.
+     * A train left without carts is discarded.
+     */
+    private void release(UUID cartID) {
+        if (carts.remove(cartID)) {
+            removeMaxSpeed(cartMaxSpeeds.removeFloat(cartID));
+            version++;
+            markDirty();
+        }
+        if (carts.isEmpty()) {
+            kill();
+            getManager(world).ifPresent(manager -> manager.remove(uuid));
+        }
     }
 
     private @Nullable
@@ -166,50 +329,182 @@ public final class Train implements Iterable<EntityMinecart> {
         return CartTools.getCartFromUUID(world, cartID);
     }
 
+    /**
+     * Rebuilds the whole train by following the couplings from the cart in both directions.
+     */
     private void rebuild(EntityMinecart first) {
         clear();
-        rebuild(null, first);
+        adopt(first, true);
+
+        CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
+        rebuild(first, lm.getCoupledCartA(first), false);
+        rebuild(first, lm.getCoupledCartB(first), true);
         markDirty();
     }
 
-    private void rebuild(@Nullable EntityMinecart prev, EntityMinecart next) {
-        if (prev == null || carts.getFirst() == prev.getPersistentID())
-            carts.addFirst(next.getPersistentID());
-        else if (carts.getLast() == prev.getPersistentID())
-            carts.addLast(next.getPersistentID());
+    private void rebuild(EntityMinecart prev, @Nullable EntityMinecart next, boolean append) {
+        CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
+        while (next != null && !contains(next)) {
+            adopt(next, append);
+
+            EntityMinecart coupledCartA = lm.getCoupledCartA(next);
+            EntityMinecart coupledCartB = lm.getCoupledCartB(next);
+            EntityMinecart following = coupledCartA != null && coupledCartA != prev ? coupledCartA
+                    : coupledCartB != prev ? coupledCartB : null;
+            prev = next;
+            next = following;
+        }
+    }
+
+    private void adopt(EntityMinecart cart, boolean append) {
+        if (append)
+            carts.addLast(cart.getPersistentID());
         else
-            throw new IllegalStateException("Passed a non-null prev value on an empty train!");
+            carts.addFirst(cart.getPersistentID());
 
-        getTrainRaw(next).filter(t -> t != this).ifPresent(Train::kill);
-        addTrainTag(next);
+        getTrainRaw(cart).filter(t -> t != this).ifPresent(t -> t.release(cart.getPersistentID()));
+        addTrainTag(cart);
+    }
 
-        CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
-        EntityMinecart coupledCartA = lm.getCoupledCartA(next);
-        EntityMinecart coupledCartB = lm.getCoupledCartB(next);
+    /**
+     * Appends the carts of the other train to the end of this train holding the joint.
+     * The other train is discarded.
+     *
+     * @return false if either joint is not at an end of its train
+     */
+    private boolean splice(EntityMinecart joint, Train other, EntityMinecart otherJoint) {
+        UUID jointId = joint.getPersistentID();
+        UUID otherJointId = otherJoint.getPersistentID();
+        boolean append;
+        if (jointId.equals(carts.last()))
+            append = true;
+        else if (jointId.equals(carts.first()))
+            append = false;
+        else
+            return false;
+        boolean forward;
+        if (otherJointId.equals(other.carts.first()))
+            forward = true;
+        else if (otherJointId.equals(other.carts.last()))
+            forward = false;
+        else
+            return false;
 
-        if (coupledCartA != null && coupledCartA != prev && !contains(coupledCartA))
-            rebuild(next, coupledCartA);
+        boolean wasValidated = validatedVersion == version;
+        int size = other.carts.size();
+        for (int i = 0; i < size; i++) {
+            UUID cartID = other.carts.get(forward ? i : size - 1 - i);
+            if (contains(cartID))
+                continue;
+            if (append)
+                carts.addLast(cartID);
+            else
+                carts.addFirst(cartID);
+            float cartMaxSpeed = other.cartMaxSpeeds.getFloat(cartID);
+            if (!Float.isNaN(cartMaxSpeed)) {
+                cartMaxSpeeds.put(cartID, cartMaxSpeed);
+                addMaxSpeed(cartMaxSpeed);
+            }
+            EntityMinecart cart = getCart(cartID);
+            if (cart != null)
+                addTrainTag(cart);
+        }
+        version++;
+        markDirty();
+        if (wasValidated)
+            validatedVersion = version;
+
+        other.carts.clear();
+        other.release(otherJointId);
+        return true;
+    }
+
+    /**
+     * Cuts the train in front of the cart at the index. The shorter side is moved to a new train.
+     */
+    private void split(int index) {
+        boolean wasValidated = validatedVersion == version;
+        Train split = new Train(UUID.randomUUID(), Collections.emptyList(), Collections.emptySet());
+        split.world = world;
+        int tail = carts.size() - index;
+        if (tail <= index) {
+            for (int i = 0; i < tail; i++) {
+                split.carts.addFirst(carts.removeLast());
+            }
+        } else {
+            for (int i = 0; i < index; i++) {
+                split.carts.addLast(carts.removeFirst());
+            }
+        }
+        for (int i = 0; i < split.carts.size(); i++) {
+            UUID cartID = split.carts.get(i);
+            float cartMaxSpeed = cartMaxSpeeds.removeFloat(cartID);
+            if (!Float.isNaN(cartMaxSpeed)) {
+                removeMaxSpeed(cartMaxSpeed);
+                split.cartMaxSpeeds.put(cartID, cartMaxSpeed);
+                split.addMaxSpeed(cartMaxSpeed);
+            }
+            EntityMinecart cart = split.getCart(cartID);
+            if (cart != null)
+                split.addTrainTag(cart);
+        }
+        version++;
+        markDirty();
+
+        getManager(world).ifPresent(manager -> {
+            if (wasValidated)
+                validatedVersion = version;
+            split.markValidated();
+            manager.put(split.uuid, split);
+        });
+        printDebug("Split train object {0} off {1}", split, this);
+    }
+
+    private void markBroken() {
+        broken = true;
+        version++;
+    }
+
+    /**
+     * Validates the train, but only if anything that could have invalidated it changed since it was last validated.
+     */
+    private boolean isValid() {
+        if (validatedVersion == version)
+            return true;
+        if (isInvalid())
+            return false;
+        markValidated();
+        return true;
+    }
 
-        if (coupledCartB != null && coupledCartB != prev && !contains(coupledCartB))
-            rebuild(next, coupledCartB);
+    private void markValidated() {
+        validatedVersion = version;
     }
 
     private boolean isInvalid() {
-        return isEmpty() || carts.stream().anyMatch(this::isCartInvalid);
+        return broken || isEmpty() || carts.stream().anyMatch(this::isCartInvalid);
     }
 
     private boolean isCartInvalid(UUID cartID) {
         EntityMinecart cart = getCart(cartID);
-        return cart != null && !uuid.equals(getTrainUUID(cart));
+        return cart != null && !CartState.get(cart).isInTrain(uuid);
     }
 
     public void kill() {
         isDead = true;
     }
 
+    public boolean isDead() {
+        return isDead;
+    }
+
     private void clear() {
-        forEach(Train::removeTrainTag);
+        forEach(this::removeOwnTrainTag);
         carts.clear();
+        cartMaxSpeeds.clear();
+        maxSpeedDirty = true;
+        broken = false;
+        version++;
         markDirty();
     }
 
@@ -217,6 +512,49 @@ public final class Train implements Iterable<EntityMinecart> {
         return uuid;
     }
 
+    /**
+     * @return true if the train is asleep. A change of its carts or couplings wakes it.
+     */
+    public boolean isAsleep() {
+        if (asleep && sleptVersion != version)
+            wake();
+        return asleep;
+    }
+
+    /**
+     * Counts the ticks the train has been at rest, and puts it to sleep once it has been at rest for long enough.
+     *
+     * @return true if the train fell asleep
+     */
+    public boolean rest(int ticksToSleep) {
+        if (++restingTicks < ticksToSleep)
+            return false;
+        asleep = true;
+        sleptVersion = version;
+        return true;
+    }
+
+    public void wake() {
+        asleep = false;
+        restingTicks = 0;
+    }
+
+    /**
+     * Wakes the train of the cart, if it has one.
+     */
+    public static void wake(EntityMinecart cart) {
+        Train train = getOrNull(cart);
+        if (train != null)
+            train.wake();
+    }
+
+    /**
+     * Changes whenever the carts of the train change, so anything derived from the cart order can tell it is stale.
+     */
+    public int getVersion() {
+        return version;
+    }
+
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean contains(@Nullable EntityMinecart cart) {
         return cart != null && carts.contains(cart.getPersistentID());
@@ -227,24 +565,52 @@ public final class Train implements Iterable<EntityMinecart> {
     }
 
     public boolean isTrainEnd(@Nullable EntityMinecart cart) {
-        return cart != null && getEnds().contains(cart.getPersistentID());
+        return cart != null && carts.isEnd(cart.getPersistentID());
     }
 
     public Collection<UUID> getEnds() {
         Set<UUID> ends = new HashSet<>();
         if (!carts.isEmpty()) {
-            ends.add(carts.getFirst());
-            ends.add(carts.getLast());
+            ends.add(carts.first());
+            ends.add(carts.last());
         }
         return ends;
     }
 
+    /**
+     * Returns the position of the cart in the train, counted from the first end, or -1 if it is not part of the train.
+     */
+    public int indexOf(@Nullable EntityMinecart cart) {
+        return cart == null ? -1 : carts.indexOf(cart.getPersistentID());
+    }
+
+    /**
+     * Returns the id of the cart at the position in the train.
+     *
+     * @throws IndexOutOfBoundsException if the position is outside the train
+     */
+    public UUID getCartId(int index) {
+        return carts.get(index);
+    }
+
     public Stream<EntityMinecart> stream() {
         return safeCarts.stream()
                 .map(this::getCart)
                 .filter(Objects::nonNull);
     }
 
+    /**
+     * Resolves the carts of this train in order, from one end to the other.
+     * Carts which are not currently loaded are added as null, so that neighbours in the list are always neighbours in the train.
+     *
+     * @param out The list the carts are added to
+     */
+    public void resolveCarts(List<EntityMinecart> out) {
+        for (int i = 0; i < carts.size(); i++) {
+            out.add(getCart(carts.get(i)));
+        }
+    }
+
     public <T extends EntityMinecart> Stream<T> stream(Class<T> cartClass) {
         return stream().flatMap(Streams.toType(cartClass));
     }
@@ -270,20 +636,53 @@ public final class Train implements Iterable<EntityMinecart> {
         return carts.isEmpty();
     }
 
-    public void refreshMaxSpeed() {
-        setMaxSpeed(calculateMaxSpeed());
+    /**
+     * Per cart update of the train speed cap, which is the lowest max rail speed of all carts in the train.
+     * <p>
+     * Records the max rail speed of the cart, only touching the aggregate if it changed,
+     * and applies the train speed cap to the cart if its cap differs.
+     */
+    public void updateMaxSpeed(EntityMinecart cart) {
+        UUID cartID = cart.getPersistentID();
+        float cartMaxSpeed = cart.getMaxCartSpeedOnRail();
+        float previous = cartMaxSpeeds.put(cartID, cartMaxSpeed);
+        if (previous != cartMaxSpeed) {
+            removeMaxSpeed(previous);
+            addMaxSpeed(cartMaxSpeed);
+        }
+        if (maxSpeedDirty)
+            calculateMaxSpeed();
+
+        if (cart.getCurrentCartSpeedCapOnRail() != maxSpeed)
+            cart.setCurrentCartSpeedCapOnRail(maxSpeed);
     }
 
-    private float calculateMaxSpeed() {
-        return (float) stream().mapToDouble(EntityMinecart::getMaxCartSpeedOnRail).min().orElse(1.2F);
+    private void calculateMaxSpeed() {
+        maxSpeed = Float.MAX_VALUE;
+        maxSpeedCount = 0;
+        maxSpeedDirty = false;
+        for (float cartMaxSpeed : cartMaxSpeeds.values()) {
+            addMaxSpeed(cartMaxSpeed);
+        }
     }
 
-    private void setMaxSpeed(float trainSpeed) {
-        for (EntityMinecart c : this) {
-            c.setCurrentCartSpeedCapOnRail(trainSpeed);
+    private void addMaxSpeed(float cartMaxSpeed) {
+        if (cartMaxSpeed < maxSpeed) {
+            maxSpeed = cartMaxSpeed;
+            maxSpeedCount = 1;
+        } else if (cartMaxSpeed == maxSpeed) {
+            maxSpeedCount++;
         }
     }
 
+    /**
+     * The aggregate only has to be recalculated when the last cart with the lowest speed is gone.
+     */
+    private void removeMaxSpeed(float cartMaxSpeed) {
+        if (cartMaxSpeed == maxSpeed && --maxSpeedCount == 0)
+            maxSpeedDirty = true;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -344,16 +743,33 @@ public final class Train implements Iterable<EntityMinecart> {
 
         final World world;
         final SaveData data;
-
         private Manager(World world) {
             this.world = world;
             this.data = makeData(world);
         }
 
         private static Optional<Manager> forWorld(@Nullable World world) {
+            return Optional.ofNullable(find(world));
+        }
+
+        private static @Nullable Manager find(@Nullable World world) {
             if (world == null || Game.isClient(world))
-                return Optional.empty();
-            return Optional.of(instances.computeIfAbsent(world, Manager::new));
+                return null;
+            Manager manager = instances.get(world);
+            if (manager == null) {
+                manager = new Manager(world);
+                instances.put(world, manager);
+            }
+            return manager;
+        }
+
+        /**
+         * Makes the train with the id, if there is one, validate its carts again the next time it is looked up.
+         */
+        private void invalidate(@Nullable UUID train) {
+            Train existing = train == null ? null : get(train);
+            if (existing != null)
+                existing.version++;
         }
 
         private static SaveData makeData(World world) {
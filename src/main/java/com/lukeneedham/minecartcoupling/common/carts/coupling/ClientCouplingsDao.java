@@ -0,0 +1,142 @@
+package com.lukeneedham.minecartcoupling.common.carts.coupling;
+
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Client side
+ * <p>
+ * The couplings the server has told this client about, as entity id to coupled entity id, one map per coupling slot.
+ * The server is the authority on couplings, so there are no rules to check here: the client just records what it is told.
+ * <p>
+ * Entries only exist for carts the client has spawned, and are dropped when the cart leaves the client world.
+ */
+public enum ClientCouplingsDao {
+    INSTANCE;
+
+    public static final int NO_CART = -1;
+
+    private final Int2IntOpenHashMap[] couplings = new Int2IntOpenHashMap[CouplingType.VALUES.length];
+
+    ClientCouplingsDao() {
+        for (int slot = 0; slot < couplings.length; slot++) {
+            couplings[slot] = new Int2IntOpenHashMap();
+            couplings[slot].defaultReturnValue(NO_CART);
+        }
+    }
+
+    /**
+     * @return the entity id of the cart coupled to the cart in the given slot, or {@link #NO_CART}
+     */
+    public int getCoupledId(int cartId, CouplingType type) {
+        return couplings[type.ordinal()].get(cartId);
+    }
+
+    public @Nullable
+    EntityMinecart getCoupledCart(World world, int cartId, CouplingType type) {
+        int coupledId = getCoupledId(cartId, type);
+        return coupledId == NO_CART ? null : CartTools.getCartFromId(world, coupledId);
+    }
+
+    /**
+     * Visits every coupling once, with the lower entity id first.
+     */
+    public void forEachCoupling(CouplingVisitor visitor) {
+        for (Int2IntOpenHashMap slot : couplings) {
+            for (ObjectIterator<Int2IntMap.Entry> it = slot.int2IntEntrySet().fastIterator(); it.hasNext(); ) {
+                Int2IntMap.Entry entry = it.next();
+                int cartId = entry.getIntKey();
+                int otherId = entry.getIntValue();
+                if (cartId < otherId)
+                    visitor.visit(cartId, otherId);
+            }
+        }
+    }
+
+    public boolean areCoupled(int cart1Id, int cart2Id) {
+        return getSlot(cart1Id, cart2Id) != null;
+    }
+
+    /**
+     * Couples the carts in their first free slots.
+     *
+     * @return false if either cart has no free slot left
+     */
+    public boolean createCoupling(int cart1Id, int cart2Id) {
+        if (cart1Id == cart2Id)
+            return false;
+        if (areCoupled(cart1Id, cart2Id))
+            return true;
+        CouplingType slot1 = getFreeSlot(cart1Id);
+        CouplingType slot2 = getFreeSlot(cart2Id);
+        if (slot1 == null || slot2 == null)
+            return false;
+        couplings[slot1.ordinal()].put(cart1Id, cart2Id);
+        couplings[slot2.ordinal()].put(cart2Id, cart1Id);
+        return true;
+    }
+
+    public void breakCoupling(int cart1Id, int cart2Id) {
+        CouplingType slot1 = getSlot(cart1Id, cart2Id);
+        if (slot1 != null)
+            couplings[slot1.ordinal()].remove(cart1Id);
+        CouplingType slot2 = getSlot(cart2Id, cart1Id);
+        if (slot2 != null)
+            couplings[slot2.ordinal()].remove(cart2Id);
+    }
+
+    public void breakCouplings(int cartId) {
+        for (Int2IntMap slot : couplings) {
+            int other = slot.remove(cartId);
+            if (other != NO_CART) {
+                CouplingType otherSlot = getSlot(other, cartId);
+                if (otherSlot != null)
+                    couplings[otherSlot.ordinal()].remove(other);
+            }
+        }
+    }
+
+    /**
+     * Called when a cart leaves the client world. Its couplings are sent again if it comes back.
+     */
+    public void onCartRemoved(int cartId) {
+        breakCouplings(cartId);
+    }
+
+    /**
+     * Called when the client world is unloaded.
+     */
+    public void clear() {
+        for (Int2IntMap slot : couplings) {
+            slot.clear();
+        }
+    }
+
+    @FunctionalInterface
+    public interface CouplingVisitor {
+        void visit(int cart1Id, int cart2Id);
+    }
+
+    private @Nullable
+    CouplingType getSlot(int fromId, int toId) {
+        for (CouplingType type : CouplingType.VALUES) {
+            if (couplings[type.ordinal()].get(fromId) == toId)
+                return type;
+        }
+        return null;
+    }
+
+    private @Nullable
+    CouplingType getFreeSlot(int cartId) {
+        for (CouplingType type : CouplingType.VALUES) {
+            if (!couplings[type.ordinal()].containsKey(cartId))
+                return type;
+        }
+        return null;
+    }
+}
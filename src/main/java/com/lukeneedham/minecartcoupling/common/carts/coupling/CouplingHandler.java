@@ -9,22 +9,72 @@
  -----------------------------------------------------------------------------*/
 package com.lukeneedham.minecartcoupling.common.carts.coupling;
 
+import com.google.common.collect.MapMaker;
+import com.lukeneedham.minecartcoupling.ModConfig;
+import com.lukeneedham.minecartcoupling.common.carts.CartState;
 import com.lukeneedham.minecartcoupling.common.carts.Train;
+import com.lukeneedham.minecartcoupling.common.carts.physics.CartPhysics;
+import com.lukeneedham.minecartcoupling.common.carts.physics.SimulationLevel;
+import com.lukeneedham.minecartcoupling.common.carts.physics.SolverMode;
+import com.lukeneedham.minecartcoupling.common.carts.physics.TrainPath;
+import com.lukeneedham.minecartcoupling.common.carts.physics.TrainSolver;
+import com.lukeneedham.minecartcoupling.common.carts.physics.TrainState;
 import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
-import com.lukeneedham.minecartcoupling.common.util.Vec2D;
+import com.lukeneedham.minecartcoupling.common.util.Game;
+import com.lukeneedham.minecartcoupling.common.util.TrackTools;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
 import net.minecraftforge.event.entity.minecart.MinecartUpdateEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.relauncher.Side;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public final class CouplingHandler {
-    public static final String COUPLING_A_TIMER = "couplingA_timer";
-    public static final String COUPLING_B_TIMER = "couplingB_timer";
     public static final double COUPLED_DRAG = 0.95;
     public static final float MAX_DISTANCE = 8F;
-    private static final float STIFFNESS = 0.7F;
-    private static final float DAMPING = 0.4F;
-    private static final float FORCE_LIMITER = 6F;
+    /**
+     * A train falls asleep once all of its carts are slower than this, and all of its couplings are stretched
+     * less than the sleep stretch, for the sleep ticks.
+     */
+    private static final double SLEEP_SPEED = 0.005;
+    private static final double SLEEP_STRETCH = 0.1;
+    private static final int SLEEP_TICKS = 40;
+    /**
+     * A cart of a sleeping train faster than this wakes the train.
+     */
+    private static final double WAKE_SPEED = 0.01;
+    /**
+     * Ticks between checks of the distance of a train to the nearest player.
+     */
+    private static final int LEVEL_CHECK_INTERVAL = 20;
+    /**
+     * A train only changes its simulation level once it is this many blocks past the distance of the level,
+     * so a player standing on the border does not make it switch back and forth.
+     */
+    private static final double LEVEL_HYSTERESIS = 8;
+    /**
+     * A train which is not solved every tick is still solved on its skipped ticks once two of its carts are this far apart,
+     * so its couplings cannot drift past the max distance between two solves.
+     */
+    private static final double EARLY_SOLVE_DISTANCE = MAX_DISTANCE / 2;
     private static CouplingHandler instance;
+    private final List<Train> worldTrains = new ArrayList<>();
+    private final List<EntityMinecart> trainCarts = new ArrayList<>();
+    private final TrainState trainState = new TrainState();
+    private int sleepingTrains, awakeTrains;
+    private final Map<Train, TrainPath> trainPaths = new MapMaker().weakKeys().makeMap();
+    private final Map<Train, SimulationLevel> trainLevels = new MapMaker().weakKeys().makeMap();
+    private final Map<Train, Long> trainSolveTicks = new MapMaker().weakKeys().makeMap();
+    private final Map<World, UpdatedTrains> updatedTrains = new MapMaker().weakKeys().makeMap();
 
     private CouplingHandler() {
     }
@@ -44,188 +94,351 @@ public final class CouplingHandler {
         return 2 * ICouplingsDao.OPTIMAL_DISTANCE;
     }
 
-    @SuppressWarnings("SimplifiableIfStatement")
-    private boolean canCartBeAdjustedBy(EntityMinecart cart1, EntityMinecart cart2) {
-        return cart1 != cart2;
-    }
-
     /**
-     * This is where the physics magic actually gets performed. It uses Spring
-     * Forces and Damping Forces to maintain a fixed distance between carts.
+     * Checks that two coupled carts can still be coupled, and breaks the coupling if not.
+     * Carts in different dimensions are given some time to follow each other before their coupling breaks.
+     * Drawbars are kept at their distance by the solver, so only springs can break from being overstretched.
      *
      * @param cart1 EntityMinecart
      * @param cart2 EntityMinecart
+     * @return true if the coupling is intact and should be solved
      */
-    protected void adjustVelocity(EntityMinecart cart1, EntityMinecart cart2, CouplingType couplingType) {
-        String timer = COUPLING_A_TIMER;
-        if (couplingType == CouplingType.COUPLING_B)
-            timer = COUPLING_B_TIMER;
+    private boolean checkCoupling(EntityMinecart cart1, EntityMinecart cart2, CouplingType couplingType, CouplingKind kind, double dist) {
+        CartState state = CartState.get(cart1);
+        int timer = couplingType.ordinal();
         if (cart1.world.provider.getDimension() != cart2.world.provider.getDimension()) {
-            short count = cart1.getEntityData().getShort(timer);
+            short count = state.couplingTimers[timer];
             count++;
             if (count > 200) {
                 CouplingsDao.SERVER_INSTANCE.breakCoupling(cart1, cart2);
-                ClientServerCommunication.sendCouplingBrokenUpdate(cart1.getEntityId(), cart2.getEntityId());
+                ClientServerCommunication.sendCouplingBrokenUpdate(cart1, cart2);
                 CouplingsDao.printDebug("Reason For Broken Coupling: Carts in different dimensions.");
             }
-            cart1.getEntityData().setShort(timer, count);
-            return;
+            state.couplingTimers[timer] = count;
+            return false;
         }
-        cart1.getEntityData().setShort(timer, (short) 0);
+        state.couplingTimers[timer] = 0;
 
-        double dist = cart1.getDistance(cart2);
-        if (dist > MAX_DISTANCE) {
+        if (kind == CouplingKind.SPRING && dist > MAX_DISTANCE) {
             CouplingsDao.SERVER_INSTANCE.breakCoupling(cart1, cart2);
-            ClientServerCommunication.sendCouplingBrokenUpdate(cart1.getEntityId(), cart2.getEntityId());
+            ClientServerCommunication.sendCouplingBrokenUpdate(cart1, cart2);
             CouplingsDao.printDebug("Reason For Broken Coupling: Max distance exceeded.");
-            return;
+            return false;
         }
+        return true;
+    }
 
-        boolean adj1 = canCartBeAdjustedBy(cart1, cart2);
-        boolean adj2 = canCartBeAdjustedBy(cart2, cart1);
-
-        Vec2D cart1Pos = new Vec2D(cart1);
-        Vec2D cart2Pos = new Vec2D(cart2);
-
-        Vec2D unit = Vec2D.unit(cart2Pos, cart1Pos);
-
-        // Energy transfer
-
-//        double transX = TRANSFER * (cart2.motionX - cart1.motionX);
-//        double transZ = TRANSFER * (cart2.motionZ - cart1.motionZ);
-//
-//        transX = limitForce(transX);
-//        transZ = limitForce(transZ);
-//
-//        if(adj1) {
-//            cart1.motionX += transX;
-//            cart1.motionZ += transZ;
-//        }
-//
-//        if(adj2) {
-//            cart2.motionX -= transX;
-//            cart2.motionZ -= transZ;
-//        }
-
-        // Spring force
-
-        float optDist = getOptimalDistance();
-        double stretch = dist - optDist;
-//        stretch = Math.max(0.0, stretch);
-//        if(Math.abs(stretch) > 0.5) {
-//            stretch *= 2;
-//        }
-
-        double stiffness = STIFFNESS;
-        double springX = stiffness * stretch * unit.getX();
-        double springZ = stiffness * stretch * unit.getY();
-
-        springX = limitForce(springX);
-        springZ = limitForce(springZ);
-
-        if (adj1) {
-            cart1.motionX += springX;
-            cart1.motionZ += springZ;
+    /**
+     * Gathers the train into the {@link TrainState}, solves all of its couplings over the arrays,
+     * and writes the new velocities back to the carts. How often and how the train is solved depends on its
+     * {@link SimulationLevel}, which is updated from the distance to the nearest player now and then.
+     *
+     * @param train Train
+     */
+    private void adjustTrain(Train train, World world) {
+        List<EntityMinecart> carts = trainCarts;
+        carts.clear();
+        train.resolveCarts(carts);
+
+        // Spread the trains over the ticks, so they do not all check or solve in the same tick
+        long tick = world.getTotalWorldTime() + train.getUUID().hashCode();
+        SimulationLevel level = trainLevels.getOrDefault(train, SimulationLevel.FULL);
+        if (tick % LEVEL_CHECK_INTERVAL == 0) {
+            level = getSimulationLevel(level, getDistanceToNearestPlayer(world, carts));
+            trainLevels.put(train, level);
         }
-
-        if (adj2) {
-            cart2.motionX -= springX;
-            cart2.motionZ -= springZ;
+        // Beyond the full simulation distance the couplings are only solved every few ticks, each solve covering them all
+        int interval = level == SimulationLevel.FULL ? 1 : Math.max(1, ModConfig.reducedSimulationInterval);
+        boolean solveDue = tick % interval == 0 || isNearBreaking(carts);
+        if (level == SimulationLevel.REDUCED && !solveDue) {
+            carts.clear();
+            return;
         }
 
-        // Damping
+        TrainState state = trainState;
+        state.gather(carts);
+        int coupledEdges = 0;
+        for (int i = 0; i + 1 < carts.size(); i++) {
+            EntityMinecart cart = carts.get(i);
+            EntityMinecart next = carts.get(i + 1);
+            if (cart != null && next != null && isCouplingActive(cart, next, state, i)) {
+                state.coupled[i] = true;
+                coupledEdges++;
+            }
+        }
+        if (coupledEdges == carts.size() - 1
+                && TrainSolver.isAtRest(state, getOptimalDistance(), SLEEP_SPEED, SLEEP_STRETCH)) {
+            if (train.rest(SLEEP_TICKS)) {
+                // Park the train completely, so it stays where it fell asleep
+                Arrays.fill(state.velX, 0, state.size(), 0);
+                Arrays.fill(state.velZ, 0, state.size(), 0);
+                state.scatter(carts);
+                carts.clear();
+                return;
+            }
+        } else {
+            train.wake();
+        }
 
-        Vec2D cart1Vel = new Vec2D(cart1.motionX, cart1.motionZ);
-        Vec2D cart2Vel = new Vec2D(cart2.motionX, cart2.motionZ);
+        if (coupledEdges > 0) {
+            // Following the lead needs an unbroken chain of carts
+            boolean follow = coupledEdges == carts.size() - 1 && (level == SimulationLevel.KINEMATIC
+                    || ModConfig.followTheLeaderLength > 0 && carts.size() >= ModConfig.followTheLeaderLength);
+            if (!follow || !followLead(train, state)) {
+                trainPaths.remove(train);
+                // A kinematic train which cannot follow its lead falls back to the cadence of a reduced one
+                if (!solveDue) {
+                    carts.clear();
+                    return;
+                }
+                int timestep = getTimestep(train, tick, interval);
+                if (ModConfig.solver == SolverMode.IMPLICIT || timestep > 1)
+                    TrainSolver.solveImplicit(state, getOptimalDistance(), COUPLED_DRAG, timestep);
+                else
+                    TrainSolver.solveExplicit(state, getOptimalDistance(), COUPLED_DRAG);
+                TrainSolver.solveDrawbars(state, getOptimalDistance());
+            }
+            state.scatter(carts);
+        }
+        carts.clear();
+    }
 
-        double dot = Vec2D.subtract(cart2Vel, cart1Vel).dotProduct(unit);
+    /**
+     * @return the distance from the nearest cart of the train to the nearest player in the world
+     */
+    private double getDistanceToNearestPlayer(World world, List<EntityMinecart> carts) {
+        double nearest = Double.MAX_VALUE;
+        for (EntityPlayer player : world.playerEntities) {
+            for (EntityMinecart cart : carts) {
+                if (cart != null)
+                    nearest = Math.min(nearest, cart.getDistanceSq(player));
+            }
+        }
+        return Math.sqrt(nearest);
+    }
 
-        double damping = DAMPING;
-        double dampX = damping * dot * unit.getX();
-        double dampZ = damping * dot * unit.getY();
+    /**
+     * Finds the furthest level whose distance has been passed. To enter a level the distance has to be passed
+     * by the hysteresis, and to leave it the train has to come closer than its distance by the hysteresis.
+     */
+    private SimulationLevel getSimulationLevel(SimulationLevel current, double distance) {
+        int level = 0;
+        for (int next = 1; next < SimulationLevel.VALUES.length; next++) {
+            double border = getLevelDistance(next) + (next > current.ordinal() ? LEVEL_HYSTERESIS : -LEVEL_HYSTERESIS);
+            if (distance > border)
+                level = next;
+        }
+        return SimulationLevel.VALUES[level];
+    }
 
-        dampX = limitForce(dampX);
-        dampZ = limitForce(dampZ);
+    /**
+     * @return the number of ticks since the train was last solved, at most the interval between its solves
+     */
+    private int getTimestep(Train train, long tick, int interval) {
+        if (interval == 1) {
+            trainSolveTicks.remove(train);
+            return 1;
+        }
+        Long solved = trainSolveTicks.put(train, tick);
+        if (solved == null)
+            return interval;
+        return (int) Math.max(1, Math.min(interval, tick - solved));
+    }
 
-        if (adj1) {
-            cart1.motionX += dampX;
-            cart1.motionZ += dampZ;
+    /**
+     * @return true if any two neighbouring carts are far enough apart that their coupling could break before the next solve
+     */
+    private boolean isNearBreaking(List<EntityMinecart> carts) {
+        for (int i = 0; i + 1 < carts.size(); i++) {
+            EntityMinecart cart = carts.get(i);
+            EntityMinecart next = carts.get(i + 1);
+            if (cart != null && next != null && cart.getDistanceSq(next) > EARLY_SOLVE_DISTANCE * EARLY_SOLVE_DISTANCE)
+                return true;
         }
+        return false;
+    }
 
-        if (adj2) {
-            cart2.motionX -= dampX;
-            cart2.motionZ -= dampZ;
+    /**
+     * @return the distance from which a train is simulated at the level, or infinity if the level is disabled
+     */
+    private double getLevelDistance(int level) {
+        int distance;
+        switch (SimulationLevel.VALUES[level]) {
+            case REDUCED:
+                distance = ModConfig.reducedSimulationDistance;
+                break;
+            case KINEMATIC:
+                distance = ModConfig.kinematicSimulationDistance;
+                break;
+            default:
+                return 0;
         }
+        return distance > 0 ? distance : Double.POSITIVE_INFINITY;
     }
 
-    private double limitForce(double force) {
-        return Math.copySign(Math.min(Math.abs(force), FORCE_LIMITER), force);
+    /**
+     * Moves the carts of the train along the recorded path of its lead cart.
+     * The path is started again whenever the carts of the train change, or another cart takes the lead.
+     *
+     * @return false if no end cart drives the train, and it has to be solved as couplings instead
+     */
+    private boolean followLead(Train train, TrainState state) {
+        int lead = TrainSolver.findLead(state);
+        if (lead == 0)
+            return false;
+        boolean leadFirst = lead > 0;
+        TrainPath path = trainPaths.get(train);
+        if (path == null || !path.isFor(train.getVersion(), state.size(), leadFirst)) {
+            path = new TrainPath(state, train.getVersion(), leadFirst, getOptimalDistance());
+            trainPaths.put(train, path);
+        }
+        TrainSolver.solveFollow(state, path, getOptimalDistance());
+        return true;
     }
 
     /**
-     * This function inspects the couplings and determines if any physics
+     * This function inspects the coupling between two neighbouring carts of a train and determines if any physics
      * adjustments need to be made.
      *
-     * @param cart EntityMinecart
+     * @param edge The edge of the carts in the train state, which is told whether the coupling is rigid
+     * @return true if the carts are coupled and should be solved
      */
-    private void adjustCart(EntityMinecart cart) {
-        if (isLaunched(cart))
-            return;
+    private boolean isCouplingActive(EntityMinecart cart, EntityMinecart next, TrainState state, int edge) {
+        CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
+        CouplingType couplingType = lm.getCouplingType(cart, next);
+        CouplingType otherCouplingType = lm.getCouplingType(next, cart);
+        if (couplingType == null && otherCouplingType == null)
+            return false;
+        // sanity check to ensure couplings are consistent
+        if (couplingType == null || otherCouplingType == null) {
+            if (!lm.repairCoupling(cart, next))
+                return false;
+            couplingType = lm.getCouplingType(cart, next);
+            if (couplingType == null)
+                return false;
+        }
+        if (isLaunched(cart) || isLaunched(next) || isOnElevator())
+            return false;
+        CouplingKind kind = CartState.get(cart).getCouplingKind(couplingType);
+        state.rigid[edge] = kind == CouplingKind.DRAWBAR;
+        return checkCoupling(cart, next, couplingType, kind, state.getDistance(edge, edge + 1));
+    }
 
-        boolean coupledA = adjustCoupledCart(cart, CouplingType.COUPLING_A);
-        boolean coupledB = adjustCoupledCart(cart, CouplingType.COUPLING_B);
-        boolean coupled = coupledA || coupledB;
+    /**
+     * This is our entry point for coupling physics, its triggered once per tick per world.
+     * Every coupling is processed once, by walking each train from end to end.
+     * Only trains with a cart that was updated since the last tick are looked at, trains in unloaded chunks are left alone.
+     *
+     * @param event WorldTickEvent
+     */
+    @SubscribeEvent
+    public void onWorldTick(TickEvent.WorldTickEvent event) {
+        if (event.side != Side.SERVER || event.phase != TickEvent.Phase.START)
+            return;
 
-        // Drag
-        if (coupled) {
-            cart.motionX *= COUPLED_DRAG;
-            cart.motionZ *= COUPLED_DRAG;
+        // Adjusting a train can break couplings, so iterate over a copy
+        UpdatedTrains updated = updatedTrains.get(event.world);
+        if (updated == null)
+            return;
+        List<Train> trains = worldTrains;
+        for (int i = 0; i < updated.list.size(); i++) {
+            trains.add(updated.list.get(i));
         }
-
-        // Speed & End Drag
-        Train.get(cart).ifPresent(train -> {
-            if (train.isTrainEnd(cart)) {
-                train.refreshMaxSpeed();
+        updated.clear();
+        for (int i = 0; i < trains.size(); i++) {
+            Train train = trains.get(i);
+            if (train.isDead())
+                continue;
+            if (train.isAsleep()) {
+                sleepingTrains++;
+            } else {
+                awakeTrains++;
+                adjustTrain(train, event.world);
             }
-        });
+        }
+        trains.clear();
+    }
 
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.START)
+            return;
+        sleepingTrains = 0;
+        awakeTrains = 0;
     }
 
-    private boolean adjustCoupledCart(EntityMinecart cart, CouplingType couplingType) {
-        boolean coupled = false;
-        CouplingsDao lm = CouplingsDao.SERVER_INSTANCE;
-        EntityMinecart coupledCart = lm.getCoupledCart(cart, couplingType);
-        if (coupledCart != null) {
-            // sanity check to ensure couplings are consistent
-            if (!lm.areCoupled(cart, coupledCart)) {
-                lm.repairCoupling(cart, coupledCart);
-            }
-            if (!isLaunched(coupledCart) && !isOnElevator()) {
-                coupled = true;
-                adjustVelocity(cart, coupledCart, couplingType);
-            }
-        }
-        return coupled;
+    /**
+     * @return the number of trains that skipped coupling physics in the current server tick, over all worlds
+     */
+    public int getSleepingTrains() {
+        return sleepingTrains;
+    }
+
+    /**
+     * @return the number of trains that were solved in the current server tick, over all worlds
+     */
+    public int getAwakeTrains() {
+        return awakeTrains;
     }
 
     /**
-     * This is our entry point, its triggered once per tick per cart.
+     * Triggered once per tick per cart. Only does the per cart work: making sure the cart is part of a valid train,
+     * keeping the train speed cap up to date, and waking the train if the cart starts moving.
      *
      * @param event MinecartUpdateEvent
      */
     @SubscribeEvent
     public void onMinecartUpdate(MinecartUpdateEvent event) {
         EntityMinecart cart = event.getMinecart();
+        if (!Game.isHost(cart.world))
+            return;
+        // Runs for every cart every tick, so nothing here may allocate, not even an Optional or a lambda
+        Train train = Train.getOrNull(cart);
+        if (train == null)
+            return;
+        UpdatedTrains updated = updatedTrains.get(cart.world);
+        if (updated == null) {
+            updated = new UpdatedTrains();
+            updatedTrains.put(cart.world, updated);
+        }
+        updated.add(train);
+        if (train.isAsleep()) {
+            if (!shouldWake(cart, event.getPos()))
+                return;
+            train.wake();
+        }
+        train.updateMaxSpeed(cart);
+    }
 
-        adjustCart(cart);
+    private boolean shouldWake(EntityMinecart cart, BlockPos pos) {
+        return CartPhysics.length(cart.motionX, cart.motionZ) > WAKE_SPEED || TrackTools.isPoweredRailAt(cart.world, pos);
     }
 
     public boolean isLaunched(EntityMinecart cart) {
-        int launched = cart.getEntityData().getInteger("Launched");
-        return launched > 0;
+        return CartState.get(cart).launched > 0;
     }
 
     public boolean isOnElevator() {
         return false;
     }
+
+    /**
+     * The trains with a cart that was updated since the last world tick, in the order they were first seen.
+     * The set answers whether a train was seen already and the list is walked by index, so once both have grown
+     * neither the per cart update nor the world tick allocates.
+     */
+    private static final class UpdatedTrains {
+        final Set<Train> set = new ObjectOpenHashSet<>();
+        final List<Train> list = new ArrayList<>();
+
+        void add(Train train) {
+            if (set.add(train))
+                list.add(train);
+        }
+
+        void clear() {
+            set.clear();
+            list.clear();
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package com.lukeneedham.minecartcoupling.common.carts.coupling;
+
+import com.google.common.collect.MapMaker;
+import com.lukeneedham.minecartcoupling.common.carts.CartState;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import com.lukeneedham.minecartcoupling.common.util.MathTools;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory adjacency index of all couplings in a world.
+ * <p/>
+ * The coupling ids in the cart's {@link CartState} are only the persisted form of a coupling.
+ * They are read the first time a cart is looked up after it has been loaded, and written
+ * whenever a coupling changes. Every other read is served from here, together with a
+ * resolved reference to the coupled cart.
+ */
+final class CouplingIndex {
+    private static final Map<World, CouplingIndex> instances = new MapMaker().weakKeys().makeMap();
+
+    private final World world;
+    private final Map<UUID, Node> nodes = new HashMap<>();
+
+    private CouplingIndex(World world) {
+        this.world = world;
+    }
+
+    static CouplingIndex forWorld(World world) {
+        return instances.computeIfAbsent(world, CouplingIndex::new);
+    }
+
+    /**
+     * Drops everything known about the cart, and any resolved references other carts hold to it.
+     * <p/>
+     * Called whenever a cart leaves the world, be it because it was killed or because its chunk was unloaded.
+     * The coupling ids in the {@link CartState} are reread the next time the cart is looked up.
+     */
+    static void onCartRemoved(EntityMinecart cart) {
+        CouplingIndex index = instances.get(cart.world);
+        if (index != null)
+            index.remove(cart);
+    }
+
+    Node get(EntityMinecart cart) {
+        UUID id = cart.getPersistentID();
+        Node node = nodes.get(id);
+        if (node == null) {
+            node = new Node(CartState.get(cart));
+            nodes.put(id, node);
+        }
+        node.owner = cart;
+        return node;
+    }
+
+    private void remove(EntityMinecart cart) {
+        Node node = nodes.get(cart.getPersistentID());
+        if (node == null || node.owner != cart)
+            return;
+        nodes.remove(cart.getPersistentID());
+        for (UUID other : node.ids) {
+            Node otherNode = MathTools.isNil(other) ? null : nodes.get(other);
+            if (otherNode != null)
+                otherNode.forget(cart);
+        }
+    }
+
+    final class Node {
+        private final UUID[] ids = new UUID[CouplingType.VALUES.length];
+        private final EntityMinecart[] carts = new EntityMinecart[CouplingType.VALUES.length];
+        private @Nullable
+        EntityMinecart owner;
+
+        private Node(CartState state) {
+            for (CouplingType type : CouplingType.VALUES) {
+                ids[type.ordinal()] = new UUID(state.getCouplingMost(type), state.getCouplingLeast(type));
+            }
+        }
+
+        UUID getId(CouplingType type) {
+            return ids[type.ordinal()];
+        }
+
+        @Nullable
+        EntityMinecart getCart(CouplingType type) {
+            int slot = type.ordinal();
+            UUID id = ids[slot];
+            if (MathTools.isNil(id))
+                return null;
+            EntityMinecart cart = carts[slot];
+            if (cart == null || !cart.isEntityAlive()) {
+                cart = CartTools.getCartFromUUID(world, id);
+                carts[slot] = cart;
+            }
+            return cart;
+        }
+
+        void set(CouplingType type, EntityMinecart target) {
+            int slot = type.ordinal();
+            ids[slot] = target.getPersistentID();
+            carts[slot] = target;
+        }
+
+        void clear(CouplingType type) {
+            int slot = type.ordinal();
+            ids[slot] = MathTools.NIL_UUID;
+            carts[slot] = null;
+        }
+
+        private void forget(EntityMinecart cart) {
+            for (int slot = 0; slot < carts.length; slot++) {
+                if (carts[slot] == cart)
+                    carts[slot] = null;
+            }
+        }
+    }
+}
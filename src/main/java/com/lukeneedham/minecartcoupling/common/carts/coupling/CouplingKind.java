@@ -0,0 +1,41 @@
+package com.lukeneedham.minecartcoupling.common.carts.coupling;
+
+import net.minecraft.init.Items;
+import net.minecraft.item.Item;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * What links two coupled carts. Chosen by the item the coupling is made with, and dropped again when it is broken.
+ */
+public enum CouplingKind {
+    /**
+     * A soft link, pulling the carts towards their optimal distance. Snaps when stretched too far.
+     */
+    SPRING,
+    /**
+     * A rigid link, keeping the carts at exactly their optimal distance. Never snaps from stretching.
+     */
+    DRAWBAR;
+
+    public static final CouplingKind[] VALUES = values();
+
+    public Item getItem() {
+        return this == DRAWBAR ? Items.IRON_INGOT : Items.STRING;
+    }
+
+    /**
+     * @return the kind of coupling made with the item, or null if the item makes no coupling
+     */
+    public static @Nullable
+    CouplingKind fromItem(Item item) {
+        for (CouplingKind kind : VALUES) {
+            if (kind.getItem() == item)
+                return kind;
+        }
+        return null;
+    }
+
+    public static CouplingKind fromOrdinal(int ordinal) {
+        return ordinal >= 0 && ordinal < VALUES.length ? VALUES[ordinal] : SPRING;
+    }
+}
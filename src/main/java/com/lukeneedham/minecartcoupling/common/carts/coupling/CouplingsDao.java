@@ -9,9 +9,9 @@
  -----------------------------------------------------------------------------*/
 package com.lukeneedham.minecartcoupling.common.carts.coupling;
 
+import com.lukeneedham.minecartcoupling.common.carts.CartState;
 import com.lukeneedham.minecartcoupling.common.carts.Train;
 import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
-import com.lukeneedham.minecartcoupling.common.util.CartTools;
 import com.lukeneedham.minecartcoupling.common.util.Game;
 import com.lukeneedham.minecartcoupling.common.util.MathTools;
 import net.minecraft.entity.item.EntityMinecart;
@@ -31,8 +31,8 @@ import java.util.stream.Stream;
  * This identifier is stored in the entity's NBT data between world loads so
  * that couplings are persistent rather than transitory.
  * <p/>
- * Couplings are also stored in NBT data as an Integer value that contains the
- * Coupling Id of the cart it is coupled to.
+ * Couplings are also stored in the cart's {@link CartState} as the Coupling Id of the cart it is coupled to.
+ * That is only the persisted form: lookups are served by a per-world {@link CouplingIndex}.
  * <p/>
  * Generally you can ignore most of this and use the functions that don't
  * require or return Coupling Ids.
@@ -40,7 +40,7 @@ import java.util.stream.Stream;
  * @author CovertJaguar <http://www.railcraft.info>
  */
 public enum CouplingsDao implements ICouplingsDao {
-    CLIENT_INSTANCE, SERVER_INSTANCE;
+    SERVER_INSTANCE;
 
     public static void printDebug(String msg, Object... args) {
         Game.log().msg(Level.DEBUG, msg, args);
@@ -66,9 +66,15 @@ public enum CouplingsDao implements ICouplingsDao {
      */
     @Override
     public boolean createCoupling(EntityMinecart cart1, EntityMinecart cart2) {
+        return createCoupling(cart1, cart2, CouplingKind.SPRING);
+    }
+
+    @Override
+    public boolean createCoupling(EntityMinecart cart1, EntityMinecart cart2, CouplingKind kind) {
         if (canCoupleCarts(cart1, cart2)) {
-            setCouplingUnidirectional(cart1, cart2);
-            setCouplingUnidirectional(cart2, cart1);
+            setCouplingUnidirectional(cart1, cart2, kind);
+            setCouplingUnidirectional(cart2, cart1, kind);
+            Train.onCoupled(cart1, cart2);
             return true;
         }
         return false;
@@ -99,9 +105,7 @@ public enum CouplingsDao implements ICouplingsDao {
 
     // Note: returns a nil uuid (0) if the coupling does not exist
     public UUID getCoupling(EntityMinecart cart, CouplingType couplingType) {
-        long high = cart.getEntityData().getLong(couplingType.tagHigh);
-        long low = cart.getEntityData().getLong(couplingType.tagLow);
-        return new UUID(high, low);
+        return CouplingIndex.forWorld(cart.world).get(cart).getId(couplingType);
     }
 
     public UUID getCouplingA(EntityMinecart cart) {
@@ -140,7 +144,16 @@ public enum CouplingsDao implements ICouplingsDao {
 
     public @Nullable
     EntityMinecart getCoupledCart(EntityMinecart cart, CouplingType type) {
-        return CartTools.getCartFromUUID(cart.world, getCoupling(cart, type));
+        return CouplingIndex.forWorld(cart.world).get(cart).getCart(type);
+    }
+
+    /**
+     * Forgets the in-memory coupling state of a cart that left the world.
+     *
+     * @param cart The cart that was removed
+     */
+    public void onCartRemoved(EntityMinecart cart) {
+        CouplingIndex.onCartRemoved(cart);
     }
 
     /**
@@ -205,7 +218,7 @@ public enum CouplingsDao implements ICouplingsDao {
         }
         else {
             breakCoupling(cart1, cart2);
-            ClientServerCommunication.sendCouplingBrokenUpdate(cart1.getEntityId(), cart2.getEntityId());
+            ClientServerCommunication.sendCouplingBrokenUpdate(cart1, cart2);
         }
         return repaired;
     }
@@ -259,26 +272,28 @@ public enum CouplingsDao implements ICouplingsDao {
         return !Train.areInSameTrain(cart1, cart2);
     }
 
-    private boolean setCouplingUnidirectional(EntityMinecart from, EntityMinecart to) {
+    private boolean setCouplingUnidirectional(EntityMinecart from, EntityMinecart to, CouplingKind kind) {
         for (CouplingType couplingType : CouplingType.VALUES) {
             if (hasFreeCouple(from, couplingType)) {
-                setCouplingUnidirectional(from, to, couplingType);
+                setCouplingUnidirectional(from, to, couplingType, kind);
                 return true;
             }
         }
         return false;
     }
 
-    private void setCouplingUnidirectional(EntityMinecart source, EntityMinecart target, CouplingType couplingType) {
+    private void setCouplingUnidirectional(EntityMinecart source, EntityMinecart target, CouplingType couplingType, CouplingKind kind) {
         UUID id = getCouplingId(target);
-        source.getEntityData().setLong(couplingType.tagHigh, id.getMostSignificantBits());
-        source.getEntityData().setLong(couplingType.tagLow, id.getLeastSignificantBits());
+        CartState.get(source).setCoupling(couplingType, id, kind);
+        CouplingIndex.forWorld(source.world).get(source).set(couplingType, target);
     }
 
     private boolean repairCouplingUnidirectional(EntityMinecart from, EntityMinecart to) {
         UUID coupling = getCouplingId(to);
 
-        return coupling.equals(getCouplingA(from)) || coupling.equals(getCouplingB(from)) || setCouplingUnidirectional(from, to);
+        // The missing half of the coupling is restored with the kind of the half that is left
+        return coupling.equals(getCouplingA(from)) || coupling.equals(getCouplingB(from))
+                || setCouplingUnidirectional(from, to, getCouplingKind(to, from));
     }
 
     /**
@@ -339,14 +354,36 @@ public enum CouplingsDao implements ICouplingsDao {
         if (couplingTwo != null) {
             breakCouplingUnidirectional(two, one, couplingTwo);
         }
+        if (couplingOne != null || couplingTwo != null) {
+            Train.onUncoupled(one, two);
+        }
     }
 
-    private @Nullable
+    /**
+     * Returns the coupling of the first cart that points to the second cart.
+     *
+     * @param from The cart whose couplings are inspected
+     * @param to   The cart being looked for
+     * @return The coupling, or null if the first cart is not coupled to the second one
+     */
+    public @Nullable
     CouplingType getCouplingType(EntityMinecart from, EntityMinecart to) {
         UUID coupleTo = getCouplingId(to);
-        return Arrays.stream(CouplingType.VALUES)
-                .filter(coupling -> coupleTo.equals(getCoupling(from, coupling)))
-                .findFirst().orElse(null);
+        for (CouplingType coupling : CouplingType.VALUES) {
+            if (coupleTo.equals(getCoupling(from, coupling)))
+                return coupling;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the kind of the coupling of the first cart that points to the second cart.
+     *
+     * @return The kind, or {@link CouplingKind#SPRING} if the first cart is not coupled to the second one
+     */
+    public CouplingKind getCouplingKind(EntityMinecart from, EntityMinecart to) {
+        CouplingType couplingType = getCouplingType(from, to);
+        return couplingType == null ? CouplingKind.SPRING : CartState.get(from).getCouplingKind(couplingType);
     }
 
     private void breakCouplingUnidirectional(EntityMinecart cart, EntityMinecart other, CouplingType couplingType) {
@@ -356,7 +393,7 @@ public enum CouplingsDao implements ICouplingsDao {
     }
 
     private void removeCouplingTags(EntityMinecart cart, CouplingType couplingType) {
-        cart.getEntityData().removeTag(couplingType.tagHigh);
-        cart.getEntityData().removeTag(couplingType.tagLow);
+        CartState.get(cart).clearCoupling(couplingType);
+        CouplingIndex.forWorld(cart.world).get(cart).clear(couplingType);
     }
 }
@@ -38,6 +38,16 @@ public interface ICouplingsDao {
      */
     boolean createCoupling(EntityMinecart cart1, EntityMinecart cart2);
 
+    /**
+     * Creates a coupling of the given kind between two carts, but only if there is nothing preventing
+     * such a coupling. Implementations which only know springs can only create those.
+     *
+     * @return true if the coupling succeeded.
+     */
+    default boolean createCoupling(EntityMinecart cart1, EntityMinecart cart2, CouplingKind kind) {
+        return kind == CouplingKind.SPRING && createCoupling(cart1, cart2);
+    }
+
     /**
      * Breaks a coupling between two carts, if any coupling exists.
      */
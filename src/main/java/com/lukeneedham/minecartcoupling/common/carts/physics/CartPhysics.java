@@ -0,0 +1,42 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+/**
+ * Vector math of the coupling and collision forces, on plain doubles.
+ * <p>
+ * Carts only move in the horizontal plane as far as these forces are concerned, so every vector is an x, z pair.
+ * Nothing here allocates, as it runs for every coupling and every colliding pair of carts each tick.
+ */
+public final class CartPhysics {
+
+    private CartPhysics() {
+    }
+
+    public static double length(double x, double z) {
+        return Math.sqrt(x * x + z * z);
+    }
+
+    public static double dot(double x1, double z1, double x2, double z2) {
+        return x1 * x2 + z1 * z2;
+    }
+
+    /**
+     * @return the component of the unit vector, or 0 if the vector has no length
+     */
+    public static double unit(double component, double length) {
+        return length == 0 ? 0 : component / length;
+    }
+
+    /**
+     * @return the speed at which b moves away from a along the unit vector from a to b
+     */
+    public static double relativeSpeed(double velX1, double velZ1, double velX2, double velZ2, double unitX, double unitZ) {
+        return dot(velX2 - velX1, velZ2 - velZ1, unitX, unitZ);
+    }
+
+    /**
+     * Clamps the magnitude of a force component, keeping its sign.
+     */
+    public static double limit(double force, double max) {
+        return Math.copySign(Math.min(Math.abs(force), max), force);
+    }
+}
@@ -0,0 +1,21 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+/**
+ * How much work is put into the couplings of a train, depending on how close the nearest player is.
+ */
+public enum SimulationLevel {
+    /**
+     * Solved every tick.
+     */
+    FULL,
+    /**
+     * Solved every few ticks with the implicit solver, over a timestep covering the skipped ticks.
+     */
+    REDUCED,
+    /**
+     * The carts follow the path of the lead cart, without solving the couplings at all.
+     */
+    KINEMATIC;
+
+    public static final SimulationLevel[] VALUES = values();
+}
@@ -0,0 +1,15 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+/**
+ * How the couplings of a train are solved each tick.
+ */
+public enum SolverMode {
+    /**
+     * A spring and damper per coupling, applied one coupling after the other. Cheap, but can oscillate on long or fast trains.
+     */
+    EXPLICIT,
+    /**
+     * All couplings of a train solved together as one chain, which stays stable however long the train is.
+     */
+    IMPLICIT
+}
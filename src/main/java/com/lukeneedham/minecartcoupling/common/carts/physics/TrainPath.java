@@ -0,0 +1,122 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+/**
+ * The recent path of the lead cart of a train, as a ring buffer of points with their arc length along the path.
+ * <p>
+ * The following carts of a long train are placed along this path at fixed arc length offsets behind the lead,
+ * instead of being pulled along by the couplings. A point is only recorded once the lead has moved far enough
+ * from the last one, so the buffer covers the whole length of the train however slowly it moves.
+ */
+public final class TrainPath {
+    private static final double MIN_STEP = 0.25;
+
+    private final double[] x, z, arc;
+    private final int version;
+    private final boolean leadFirst;
+    private final int size;
+    private int head = -1, count;
+
+    // Cursor and result of the current sampling pass
+    private double liveX, liveZ, liveArc;
+    private int cursor;
+    double sampleX, sampleZ;
+
+    /**
+     * Starts a path from the current positions of the carts, from the last cart to the lead,
+     * so the carts are already on the path it describes.
+     *
+     * @param version   The version of the train the path was built for
+     * @param leadFirst Whether the lead is the first cart of the train, rather than the last
+     * @param spacing   The arc length between neighbouring carts
+     */
+    public TrainPath(TrainState state, int version, boolean leadFirst, double spacing) {
+        this.version = version;
+        this.leadFirst = leadFirst;
+        this.size = state.size();
+        int capacity = (int) Math.ceil(size * spacing / MIN_STEP) + size + 16;
+        x = new double[capacity];
+        z = new double[capacity];
+        arc = new double[capacity];
+        for (int k = size - 1; k >= 0; k--) {
+            int i = leadFirst ? k : size - 1 - k;
+            record(state.posX[i], state.posZ[i]);
+        }
+    }
+
+    public boolean isFor(int version, int size, boolean leadFirst) {
+        return this.version == version && this.size == size && this.leadFirst == leadFirst;
+    }
+
+    public boolean isLeadFirst() {
+        return leadFirst;
+    }
+
+    void record(double px, double pz) {
+        if (count > 0) {
+            double step = CartPhysics.length(px - x[head], pz - z[head]);
+            if (step < MIN_STEP)
+                return;
+            double headArc = arc[head];
+            head = (head + 1) % x.length;
+            arc[head] = headArc + step;
+        } else {
+            head = 0;
+            arc[head] = 0;
+        }
+        x[head] = px;
+        z[head] = pz;
+        if (count < x.length)
+            count++;
+    }
+
+    /**
+     * Starts a sampling pass from the current position of the lead, which may not have been recorded yet.
+     *
+     * @return the arc length of the lead
+     */
+    double beginSampling(double leadX, double leadZ) {
+        liveX = leadX;
+        liveZ = leadZ;
+        liveArc = arc[head] + CartPhysics.length(leadX - x[head], leadZ - z[head]);
+        cursor = 0;
+        return liveArc;
+    }
+
+    /**
+     * Finds the point at the arc length, which must not be greater than that of the last sample of the pass.
+     * If the path does not reach back that far, the oldest point is used.
+     */
+    void sample(double s) {
+        while (cursor < count && arcAt(cursor + 1) > s) {
+            cursor++;
+        }
+        if (cursor >= count) {
+            sampleX = xAt(cursor);
+            sampleZ = zAt(cursor);
+            return;
+        }
+        double arc1 = arcAt(cursor), arc2 = arcAt(cursor + 1);
+        double t = arc1 > arc2 ? (arc1 - s) / (arc1 - arc2) : 0;
+        sampleX = xAt(cursor) + t * (xAt(cursor + 1) - xAt(cursor));
+        sampleZ = zAt(cursor) + t * (zAt(cursor + 1) - zAt(cursor));
+    }
+
+    /**
+     * Point 0 is the live position of the lead, point 1 the last recorded point, and so on back to the oldest.
+     */
+    private int ring(int point) {
+        return (head - (point - 1) + x.length) % x.length;
+    }
+
+    private double arcAt(int point) {
+        return point == 0 ? liveArc : arc[ring(point)];
+    }
+
+    private double xAt(int point) {
+        return point == 0 ? liveX : x[ring(point)];
+    }
+
+    private double zAt(int point) {
+        return point == 0 ? liveZ : z[ring(point)];
+    }
+}
@@ -0,0 +1,281 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+/**
+ * Solves the couplings of a whole train over its {@link TrainState}.
+ * <p>
+ * Works on the arrays alone, never on entities, so the math can be run and measured without a world.
+ */
+public final class TrainSolver {
+    /**
+     * Tuned for a single application per edge and tick. Couplings used to be adjusted from the update of both of their
+     * carts, at half this stiffness, so the pull between carts stays the same.
+     */
+    private static final double STIFFNESS = 1.4;
+    /**
+     * Each application takes twice this much off the relative speed of the two carts, so from 0.5 on it would reverse it
+     * and the explicit solve would blow up. It is kept at the old value rather than doubled with the stiffness.
+     */
+    private static final double DAMPING = 0.4;
+    private static final double FORCE_LIMITER = 6;
+    private static final double LEAD_MIN_SPEED = 0.001;
+
+    private TrainSolver() {
+    }
+
+    /**
+     * Applies the spring and damping forces of every coupled spring edge from one end of the train to the other,
+     * then the drag of each coupled cart once both of its edges are done. Drawbars are left to {@link #solveDrawbars}.
+     *
+     * @param optimalDistance The distance between coupled carts the springs pull towards
+     * @param drag            The factor the velocity of a coupled cart is multiplied with
+     */
+    public static void solveExplicit(TrainState state, double optimalDistance, double drag) {
+        int size = state.size();
+        double[] posX = state.posX;
+        double[] posZ = state.posZ;
+        double[] velX = state.velX;
+        double[] velZ = state.velZ;
+        boolean[] coupled = state.coupled;
+
+        boolean coupledPrev = false;
+        for (int i = 0; i < size; i++) {
+            boolean coupledNext = i + 1 < size && coupled[i];
+            if (coupledNext && !state.rigid[i]) {
+                int j = i + 1;
+                double deltaX = posX[j] - posX[i];
+                double deltaZ = posZ[j] - posZ[i];
+                double length = CartPhysics.length(deltaX, deltaZ);
+                double unitX = CartPhysics.unit(deltaX, length);
+                double unitZ = CartPhysics.unit(deltaZ, length);
+
+                // Spring force
+                double stretch = state.getDistance(i, j) - optimalDistance;
+                double springX = CartPhysics.limit(STIFFNESS * stretch * unitX, FORCE_LIMITER);
+                double springZ = CartPhysics.limit(STIFFNESS * stretch * unitZ, FORCE_LIMITER);
+                velX[i] += springX;
+                velZ[i] += springZ;
+                velX[j] -= springX;
+                velZ[j] -= springZ;
+
+                // Damping
+                double dot = CartPhysics.relativeSpeed(velX[i], velZ[i], velX[j], velZ[j], unitX, unitZ);
+                double dampX = CartPhysics.limit(DAMPING * dot * unitX, FORCE_LIMITER);
+                double dampZ = CartPhysics.limit(DAMPING * dot * unitZ, FORCE_LIMITER);
+                velX[i] += dampX;
+                velZ[i] += dampZ;
+                velX[j] -= dampX;
+                velZ[j] -= dampZ;
+            }
+
+            // Drag
+            if (coupledPrev || coupledNext) {
+                velX[i] *= drag;
+                velZ[i] *= drag;
+            }
+            coupledPrev = coupledNext;
+        }
+    }
+
+    /**
+     * Solves all coupled spring edges of the train together, as one chain, then applies the drag of each coupled cart.
+     * Drawbars are left to {@link #solveDrawbars}.
+     * <p>
+     * Every edge gets an impulse along its axis, pulling its carts together or pushing them apart.
+     * The impulse is that of a spring and damper evaluated at the end of the tick rather than at the start,
+     * and as each impulse also changes the velocity of the neighbouring edges, the impulses of the whole train
+     * depend on each other. They form a tridiagonal system, which is solved in one sweep down the train and one back up.
+     * Unlike the explicit solve this cannot overshoot, so long and fast trains settle instead of oscillating,
+     * and it stays stable when run less often than every tick with a longer timestep.
+     *
+     * @param optimalDistance The distance between coupled carts the springs pull towards
+     * @param drag            The factor the velocity of a coupled cart is multiplied with per tick
+     * @param timestep        The number of ticks the solve covers
+     */
+    public static void solveImplicit(TrainState state, double optimalDistance, double drag, int timestep) {
+        int edges = state.size() - 1;
+        if (edges < 1)
+            return;
+        double[] posX = state.posX;
+        double[] posZ = state.posZ;
+        double[] velX = state.velX;
+        double[] velZ = state.velZ;
+        boolean[] coupled = state.springs();
+        double[] edgeX = state.edgeX;
+        double[] edgeZ = state.edgeZ;
+        double[] impulse = state.impulse;
+        double[] work = state.work;
+        double compliance = 1 / (timestep * timestep * STIFFNESS + timestep * DAMPING);
+        double forceLimit = timestep * FORCE_LIMITER;
+
+        for (int i = 0; i < edges; i++) {
+            double deltaX = posX[i + 1] - posX[i];
+            double deltaZ = posZ[i + 1] - posZ[i];
+            double length = CartPhysics.length(deltaX, deltaZ);
+            edgeX[i] = coupled[i] ? CartPhysics.unit(deltaX, length) : 0;
+            edgeZ[i] = coupled[i] ? CartPhysics.unit(deltaZ, length) : 0;
+        }
+
+        // Row i: -lower * impulse[i - 1] + diagonal * impulse[i] - upper * impulse[i + 1] = rhs
+        // Forward sweep, keeping the eliminated upper coefficient in work and the rhs in impulse
+        for (int i = 0; i < edges; i++) {
+            double diagonal, rhs, upper;
+            if (coupled[i]) {
+                double stretch = state.getDistance(i, i + 1) - optimalDistance;
+                double speed = CartPhysics.relativeSpeed(velX[i], velZ[i], velX[i + 1], velZ[i + 1], edgeX[i], edgeZ[i]);
+                diagonal = 2 + compliance;
+                rhs = speed + compliance * timestep * STIFFNESS * stretch;
+                upper = i + 1 < edges ? CartPhysics.dot(edgeX[i], edgeZ[i], edgeX[i + 1], edgeZ[i + 1]) : 0;
+            } else {
+                // No impulse on an uncoupled edge
+                diagonal = 1;
+                rhs = 0;
+                upper = 0;
+            }
+            if (i > 0) {
+                double lower = coupled[i] ? CartPhysics.dot(edgeX[i - 1], edgeZ[i - 1], edgeX[i], edgeZ[i]) : 0;
+                diagonal -= lower * work[i - 1];
+                rhs += lower * impulse[i - 1];
+            }
+            work[i] = upper / diagonal;
+            impulse[i] = rhs / diagonal;
+        }
+        // Back substitution
+        for (int i = edges - 2; i >= 0; i--) {
+            impulse[i] += work[i] * impulse[i + 1];
+        }
+
+        for (int i = 0; i < edges; i++) {
+            if (!coupled[i])
+                continue;
+            double impulseX = CartPhysics.limit(impulse[i] * edgeX[i], forceLimit);
+            double impulseZ = CartPhysics.limit(impulse[i] * edgeZ[i], forceLimit);
+            velX[i] += impulseX;
+            velZ[i] += impulseZ;
+            velX[i + 1] -= impulseX;
+            velZ[i + 1] -= impulseZ;
+        }
+
+        applyDrag(state, timestep == 1 ? drag : Math.pow(drag, timestep));
+    }
+
+    /**
+     * Keeps every drawbar at exactly the optimal distance, as a position based distance constraint.
+     * <p>
+     * The carts are moved ahead by their velocity, each drawbar projects its two carts back onto the optimal
+     * distance, sharing the correction equally, and the velocity becomes the move from where each cart is now.
+     * The drawbars are projected once each, from one end of the train to the other, with no damping pass,
+     * as the projection leaves no stretch to damp. Run after the springs, so it has the final say.
+     *
+     * @param optimalDistance The distance between coupled carts
+     */
+    public static void solveDrawbars(TrainState state, double optimalDistance) {
+        int size = state.size();
+        double[] posX = state.posX;
+        double[] posZ = state.posZ;
+        double[] velX = state.velX;
+        double[] velZ = state.velZ;
+        for (int i = 0; i + 1 < size; i++) {
+            if (!state.coupled[i] || !state.rigid[i])
+                continue;
+            int j = i + 1;
+            double deltaX = posX[j] + velX[j] - posX[i] - velX[i];
+            double deltaZ = posZ[j] + velZ[j] - posZ[i] - velZ[i];
+            double length = CartPhysics.length(deltaX, deltaZ);
+            if (length == 0)
+                continue;
+            // Only the horizontal part of the distance can be corrected, so keep the height difference out of it
+            double height = state.posY[j] - state.posY[i];
+            double horizontal = Math.sqrt(Math.max(optimalDistance * optimalDistance - height * height, 0));
+            double correction = CartPhysics.limit(0.5 * (length - horizontal), FORCE_LIMITER);
+            double correctionX = correction * deltaX / length;
+            double correctionZ = correction * deltaZ / length;
+            velX[i] += correctionX;
+            velZ[i] += correctionZ;
+            velX[j] -= correctionX;
+            velZ[j] -= correctionZ;
+        }
+    }
+
+    /**
+     * @param maxSpeed   The speed below which a cart counts as standing still
+     * @param maxStretch The distance from the optimal distance within which a coupling counts as relaxed
+     * @return true if every cart is close to standing still, and every coupling close to its optimal distance
+     */
+    public static boolean isAtRest(TrainState state, double optimalDistance, double maxSpeed, double maxStretch) {
+        for (int i = 0; i < state.size(); i++) {
+            if (CartPhysics.length(state.velX[i], state.velZ[i]) > maxSpeed)
+                return false;
+            if (i + 1 < state.size() && Math.abs(state.getDistance(i, i + 1) - optimalDistance) > maxStretch)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the cart leading the train: the end cart moving away from the rest of the train,
+     * which no other cart is overtaking. A train pushed from behind has no lead, as the cart driving it is not at the front.
+     *
+     * @return 1 if the first cart leads, -1 if the last cart leads, 0 if neither end drives the train
+     */
+    public static int findLead(TrainState state) {
+        int last = state.size() - 1;
+        if (last < 1)
+            return 0;
+        if (isMovingOutwards(state, 0, 1))
+            return isDriving(state, 0) ? 1 : 0;
+        if (isMovingOutwards(state, last, last - 1))
+            return isDriving(state, last) ? -1 : 0;
+        return 0;
+    }
+
+    private static boolean isDriving(TrainState state, int lead) {
+        double leadX = state.velX[lead];
+        double leadZ = state.velZ[lead];
+        double speed = CartPhysics.length(leadX, leadZ);
+        // Compared against the lead velocity rather than its unit vector, so the limit is scaled by the speed as well
+        double limit = speed * (speed + LEAD_MIN_SPEED);
+        for (int i = 0; i < state.size(); i++) {
+            if (i != lead && CartPhysics.dot(state.velX[i], state.velZ[i], leadX, leadZ) > limit)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isMovingOutwards(TrainState state, int end, int inner) {
+        double outX = state.posX[end] - state.posX[inner];
+        double outZ = state.posZ[end] - state.posZ[inner];
+        return CartPhysics.dot(state.velX[end], state.velZ[end], outX, outZ) > LEAD_MIN_SPEED;
+    }
+
+    /**
+     * Moves every cart behind the lead towards its place on the path of the lead, at a fixed arc length behind it.
+     * The lead keeps its own velocity. The carts are not pulled by their couplings, so no forces are exchanged:
+     * each following cart costs one lookup along the path, which is walked from the lead backwards once.
+     *
+     * @param spacing The arc length between neighbouring carts
+     */
+    public static void solveFollow(TrainState state, TrainPath path, double spacing) {
+        int size = state.size();
+        int lead = path.isLeadFirst() ? 0 : size - 1;
+        int step = path.isLeadFirst() ? 1 : -1;
+        path.record(state.posX[lead], state.posZ[lead]);
+        double leadArc = path.beginSampling(state.posX[lead], state.posZ[lead]);
+        for (int k = 1; k < size; k++) {
+            int i = lead + k * step;
+            path.sample(leadArc - k * spacing);
+            state.velX[i] = path.sampleX - state.posX[i];
+            state.velZ[i] = path.sampleZ - state.posZ[i];
+        }
+    }
+
+    private static void applyDrag(TrainState state, double drag) {
+        int size = state.size();
+        boolean[] coupled = state.coupled;
+        for (int i = 0; i < size; i++) {
+            if ((i > 0 && coupled[i - 1]) || (i + 1 < size && coupled[i])) {
+                state.velX[i] *= drag;
+                state.velZ[i] *= drag;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+import net.minecraft.entity.item.EntityMinecart;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The positions and velocities of the carts of one train, in train order, as one array per component.
+ * <p>
+ * The solver gathers a train into this once per tick, runs all of its coupling math over the arrays,
+ * and scatters the new velocities back to the carts in one pass. The arrays only grow, so one instance
+ * is reused for every train. Edge i is the coupling between cart i and cart i + 1.
+ */
+public final class TrainState {
+    private int size;
+    public double[] posX = new double[0];
+    public double[] posY = new double[0];
+    public double[] posZ = new double[0];
+    public double[] velX = new double[0];
+    public double[] velZ = new double[0];
+    /**
+     * Whether the coupling of each edge takes part in the solve.
+     */
+    public boolean[] coupled = new boolean[0];
+    /**
+     * Whether the coupling of each edge is a rigid drawbar rather than a spring. Only meaningful for coupled edges.
+     */
+    public boolean[] rigid = new boolean[0];
+    /**
+     * Scratch space of the solvers, per edge.
+     */
+    double[] edgeX = new double[0], edgeZ = new double[0], impulse = new double[0], work = new double[0];
+    private boolean[] springs = new boolean[0];
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the number of carts, clearing all edges. The values of the carts are undefined until set.
+     */
+    public void resize(int size) {
+        if (posX.length < size) {
+            int capacity = Math.max(size, posX.length * 2);
+            posX = Arrays.copyOf(posX, capacity);
+            posY = Arrays.copyOf(posY, capacity);
+            posZ = Arrays.copyOf(posZ, capacity);
+            velX = Arrays.copyOf(velX, capacity);
+            velZ = Arrays.copyOf(velZ, capacity);
+            coupled = Arrays.copyOf(coupled, capacity);
+            rigid = Arrays.copyOf(rigid, capacity);
+            edgeX = new double[capacity];
+            edgeZ = new double[capacity];
+            impulse = new double[capacity];
+            work = new double[capacity];
+        }
+        this.size = size;
+        Arrays.fill(coupled, 0, size, false);
+        Arrays.fill(rigid, 0, size, false);
+    }
+
+    public void set(int i, double x, double y, double z, double motionX, double motionZ) {
+        posX[i] = x;
+        posY[i] = y;
+        posZ[i] = z;
+        velX[i] = motionX;
+        velZ[i] = motionZ;
+    }
+
+    /**
+     * Reads the carts into the arrays. Carts which are not loaded are null, and left at zero.
+     */
+    public void gather(List<EntityMinecart> carts) {
+        resize(carts.size());
+        for (int i = 0; i < size; i++) {
+            EntityMinecart cart = carts.get(i);
+            if (cart == null)
+                set(i, 0, 0, 0, 0, 0);
+            else
+                set(i, cart.posX, cart.posY, cart.posZ, cart.motionX, cart.motionZ);
+        }
+    }
+
+    /**
+     * Writes the velocities back to the carts.
+     */
+    public void scatter(List<EntityMinecart> carts) {
+        for (int i = 0; i < size; i++) {
+            EntityMinecart cart = carts.get(i);
+            if (cart != null) {
+                cart.motionX = velX[i];
+                cart.motionZ = velZ[i];
+            }
+        }
+    }
+
+    /**
+     * @return the coupled spring edges, in the scratch space of the solvers
+     */
+    boolean[] springs() {
+        if (springs.length < coupled.length)
+            springs = new boolean[coupled.length];
+        for (int i = 0; i < size; i++) {
+            springs[i] = coupled[i] && !rigid[i];
+        }
+        return springs;
+    }
+
+    public double getDistance(int i, int j) {
+        double x = posX[j] - posX[i];
+        double y = posY[j] - posY[i];
+        double z = posZ[j] - posZ[i];
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+}
@@ -1,31 +1,107 @@
 package com.lukeneedham.minecartcoupling.common.packet;
 
 import com.lukeneedham.minecartcoupling.Mod;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigest;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingDigestMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingdigest.CouplingResyncRequestMessage;
 import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressState;
 import com.lukeneedham.minecartcoupling.common.packet.couplingprogress.CouplingProgressStateMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessage;
 import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdate;
 import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateMessage;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateQueue;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
 import net.minecraftforge.fml.common.network.NetworkRegistry;
 import net.minecraftforge.fml.common.network.simpleimpl.SimpleNetworkWrapper;
 
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Updates are only sent to the players tracking the carts involved, as no other client has those carts loaded.
+ */
 public class ClientServerCommunication {
     public static final SimpleNetworkWrapper channel = NetworkRegistry.INSTANCE.newSimpleChannel(Mod.MOD_ID);
 
-    public static void sendCouplingProgressState(int stateType, int cartId, int playerId) {
-        channel.sendToAll(
-                new CouplingProgressStateMessage(CouplingProgressState.from(stateType, cartId, playerId))
-        );
+    public static void sendCouplingProgressState(int stateType, Entity cart, EntityPlayer player) {
+        Set<EntityPlayerMP> players = getTrackingPlayers(cart);
+        if (player instanceof EntityPlayerMP)
+            players.add((EntityPlayerMP) player);
+        CouplingProgressStateMessage message =
+                new CouplingProgressStateMessage(CouplingProgressState.from(stateType, cart.getEntityId(), player.getEntityId()));
+        for (EntityPlayerMP recipient : players) {
+            channel.sendTo(message, recipient);
+        }
+    }
+
+    public static void sendCouplingCreationUpdate(Entity cart1, Entity cart2) {
+        Set<EntityPlayerMP> players = getTrackingPlayers(cart1);
+        addTrackingPlayers(cart2, players);
+        CouplingUpdateQueue.INSTANCE.add(new CouplingUpdate.Created(cart1.getEntityId(), cart2.getEntityId()), players);
+    }
+
+    public static void sendCouplingBrokenUpdate(Entity cart1, Entity cart2) {
+        Set<EntityPlayerMP> players = getTrackingPlayers(cart1);
+        addTrackingPlayers(cart2, players);
+        CouplingUpdateQueue.INSTANCE.add(new CouplingUpdate.Broken(cart1.getEntityId(), cart2.getEntityId()), players);
+    }
+
+    /**
+     * @param formerlyCoupled the carts which were coupled to the cart. Their trackers are notified as well,
+     *                        since a cart which was just killed is no longer tracked by anyone.
+     */
+    public static void sendAllCouplingsBrokenUpdate(Entity cart, List<? extends Entity> formerlyCoupled) {
+        Set<EntityPlayerMP> players = getTrackingPlayers(cart);
+        for (Entity other : formerlyCoupled) {
+            addTrackingPlayers(other, players);
+        }
+        CouplingUpdateQueue.INSTANCE.add(new CouplingUpdate.AllBroken(cart.getEntityId()), players);
+    }
+
+    /**
+     * Sends a batch of coupling updates right away. Called by {@link CouplingUpdateQueue} at the end of each tick.
+     */
+    public static void sendCouplingUpdates(List<CouplingUpdate> updates, EntityPlayerMP player) {
+        channel.sendTo(new CouplingUpdateMessage(updates), player);
+    }
+
+    public static void sendCouplingSnapshot(List<int[]> chains, EntityPlayerMP player) {
+        channel.sendTo(new CouplingSnapshotMessage(chains), player);
+    }
+
+    public static void sendCouplingDigests(List<CouplingDigest> digests, EntityPlayerMP player) {
+        channel.sendTo(new CouplingDigestMessage(digests), player);
+    }
+
+    /**
+     * Client side
+     */
+    public static void sendCouplingResyncRequest(int[] anchorIds) {
+        channel.sendToServer(new CouplingResyncRequestMessage(anchorIds));
     }
 
-    public static void sendCouplingCreationUpdate(int cart1Id, int cart2Id) {
-        channel.sendToAll(new CouplingUpdateMessage(new CouplingUpdate.Created(cart1Id, cart2Id)));
+    public static Set<EntityPlayerMP> getTrackingPlayers(Entity entity) {
+        Set<EntityPlayerMP> players = new LinkedHashSet<>();
+        addTrackingPlayers(entity, players);
+        return players;
     }
 
-    public static void sendCouplingBrokenUpdate(int cart1Id, int cart2Id) {
-        channel.sendToAll(new CouplingUpdateMessage(new CouplingUpdate.Broken(cart1Id, cart2Id)));
+    public static boolean isTracking(EntityPlayerMP player, Entity entity) {
+        return entity.world instanceof WorldServer
+                && ((WorldServer) entity.world).getEntityTracker().getTrackingPlayers(entity).contains(player);
     }
 
-    public static void sendAllCouplingsBrokenUpdate(int cartId) {
-        channel.sendToAll(new CouplingUpdateMessage(new CouplingUpdate.AllBroken(cartId)));
+    private static void addTrackingPlayers(Entity entity, Set<EntityPlayerMP> players) {
+        if (!(entity.world instanceof WorldServer))
+            return;
+        Set<? extends EntityPlayer> trackers = ((WorldServer) entity.world).getEntityTracker().getTrackingPlayers(entity);
+        for (EntityPlayer tracker : trackers) {
+            if (tracker instanceof EntityPlayerMP)
+                players.add((EntityPlayerMP) tracker);
+        }
     }
 }
@@ -0,0 +1,145 @@
+package com.lukeneedham.minecartcoupling.common.packet;
+
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Client side
+ * <p>
+ * A message can name a cart whose spawn packet has not been handled yet. Such parts of a message are parked,
+ * and applied once all the carts they name have joined the world. Parked parts expire after a while,
+ * as the cart may never join, and a newer update about the same carts supersedes them.
+ * <p>
+ * Only used from the main thread.
+ */
+public enum ParkedActions {
+    INSTANCE;
+
+    private static final int MAX_PARKED = 256;
+    private static final int MAX_PARKED_AGE = 200;
+
+    private final List<Parked> parked = new ArrayList<>();
+    private boolean cartsJoined;
+    private int ticks;
+
+    /**
+     * Called at the start of each client tick, before the messages received since the last tick are applied.
+     */
+    public void onTick(World world) {
+        ticks++;
+        expireParked();
+        if (cartsJoined) {
+            cartsJoined = false;
+            retryParked(world);
+        }
+    }
+
+    /**
+     * Called when a cart joins the client world.
+     */
+    public void onCartSpawned() {
+        if (!parked.isEmpty())
+            cartsJoined = true;
+    }
+
+    /**
+     * Parks an action until all of the carts have joined the world. If the buffer is full, the oldest action is dropped.
+     */
+    public void park(int[] cartIds, Runnable action) {
+        if (parked.size() >= MAX_PARKED)
+            parked.remove(0);
+        parked.add(new Parked(cartIds, action, ticks));
+    }
+
+    /**
+     * Drops the parked actions naming all of the carts, as a newer update about them has arrived.
+     */
+    public void cancelParkedWithAll(int... cartIds) {
+        parked.removeIf(p -> p.containsAll(cartIds));
+    }
+
+    /**
+     * Drops the parked actions naming any of the carts, as a newer update about them has arrived.
+     */
+    public void cancelParkedWithAny(int... cartIds) {
+        parked.removeIf(p -> p.containsAny(cartIds));
+    }
+
+    public void clear() {
+        parked.clear();
+        cartsJoined = false;
+    }
+
+    private void expireParked() {
+        // Parked actions are in order of age
+        int expired = 0;
+        while (expired < parked.size() && ticks - parked.get(expired).tick > MAX_PARKED_AGE) {
+            expired++;
+        }
+        if (expired > 0)
+            parked.subList(0, expired).clear();
+    }
+
+    private void retryParked(World world) {
+        List<Runnable> ready = new ArrayList<>();
+        for (Iterator<Parked> it = parked.iterator(); it.hasNext(); ) {
+            Parked p = it.next();
+            if (p.isReady(world)) {
+                it.remove();
+                ready.add(p.action);
+            }
+        }
+        // Run after the scan, as an action may park or cancel again
+        for (Runnable action : ready) {
+            action.run();
+        }
+    }
+
+    private static final class Parked {
+        final int[] cartIds;
+        final Runnable action;
+        final int tick;
+
+        Parked(int[] cartIds, Runnable action, int tick) {
+            this.cartIds = cartIds;
+            this.action = action;
+            this.tick = tick;
+        }
+
+        boolean isReady(World world) {
+            for (int cartId : cartIds) {
+                if (CartTools.getCartFromId(world, cartId) == null)
+                    return false;
+            }
+            return true;
+        }
+
+        boolean containsAll(int[] ids) {
+            for (int id : ids) {
+                if (!contains(id))
+                    return false;
+            }
+            return true;
+        }
+
+        boolean containsAny(int[] ids) {
+            for (int id : ids) {
+                if (contains(id))
+                    return true;
+            }
+            return false;
+        }
+
+        private boolean contains(int id) {
+            for (int cartId : cartIds) {
+                if (cartId == id)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.lukeneedham.minecartcoupling.common.packet;
+
+import net.minecraft.network.PacketBuffer;
+
+/**
+ * Shared parts of the encoding of the coupling messages.
+ * <p>
+ * Every message starts with the format version, so that a client and server of different versions fail loudly
+ * instead of misreading each other. Entity ids are written as varints, mostly as the difference to a previous id,
+ * since the ids of carts which are coupled together tend to be close.
+ */
+public final class WireFormat {
+    public static final int VERSION = 1;
+    /**
+     * Number of low bits of a record header holding the record type.
+     */
+    public static final int TYPE_BITS = 2;
+    public static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+    private WireFormat() {
+    }
+
+    public static void writeVersion(PacketBuffer buffer) {
+        buffer.writeByte(VERSION);
+    }
+
+    public static void readVersion(PacketBuffer buffer) {
+        int version = buffer.readUnsignedByte();
+        if (version != VERSION)
+            throw new RuntimeException("Unsupported coupling message version: " + version + ", expected " + VERSION);
+    }
+
+    /**
+     * Writes a record type together with a signed value, in a single varint.
+     */
+    public static void writeHeader(PacketBuffer buffer, int type, int value) {
+        buffer.writeVarLong((encodeZigZag(value) & 0xFFFFFFFFL) << TYPE_BITS | type);
+    }
+
+    public static int headerType(long header) {
+        return (int) (header & TYPE_MASK);
+    }
+
+    public static int headerValue(long header) {
+        return decodeZigZag((int) (header >>> TYPE_BITS));
+    }
+
+    public static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,30 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+/**
+ * A hash of the couplings of a run of neighbouring coupled carts, identified by the entity id of the cart at one end.
+ * <p>
+ * The hash is the sum of the hashes of the couplings, so it does not depend on the order they are visited in,
+ * and the client can compute it by walking its own couplings from the anchor cart.
+ */
+public class CouplingDigest {
+    public int anchorId;
+    public int hash;
+
+    public CouplingDigest(int anchorId, int hash) {
+        this.anchorId = anchorId;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the hash of the coupling between two carts, the same whichever cart comes first
+     */
+    public static int hashCoupling(int cart1Id, int cart2Id) {
+        long h = ((long) Math.min(cart1Id, cart2Id) << 32) | (Math.max(cart1Id, cart2Id) & 0xFFFFFFFFL);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,55 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+import com.lukeneedham.minecartcoupling.common.packet.WireFormat;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketBuffer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The digests of the coupled carts a player is tracking. Each digest is the delta of its anchor id to the previous one,
+ * followed by the 4 byte hash.
+ */
+public class CouplingDigestMessage implements IMessage {
+
+    public List<CouplingDigest> digests;
+
+    public CouplingDigestMessage() {
+    }
+
+    public CouplingDigestMessage(List<CouplingDigest> digests) {
+        this.digests = digests;
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.readVersion(buffer);
+        int count = buffer.readVarInt();
+        // Every digest takes at least five bytes
+        if (count * 5L > buffer.readableBytes())
+            throw new RuntimeException("CouplingDigest count exceeds message: " + count);
+        digests = new ArrayList<>(count);
+        int previousId = 0;
+        for (int i = 0; i < count; i++) {
+            int anchorId = previousId + WireFormat.decodeZigZag(buffer.readVarInt());
+            digests.add(new CouplingDigest(anchorId, buffer.readInt()));
+            previousId = anchorId;
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.writeVersion(buffer);
+        buffer.writeVarInt(digests.size());
+        int previousId = 0;
+        for (CouplingDigest digest : digests) {
+            buffer.writeVarInt(WireFormat.encodeZigZag(digest.anchorId - previousId));
+            buffer.writeInt(digest.hash);
+            previousId = digest.anchorId;
+        }
+    }
+}
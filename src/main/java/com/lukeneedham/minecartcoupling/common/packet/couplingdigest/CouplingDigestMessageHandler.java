@@ -0,0 +1,70 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+import com.lukeneedham.minecartcoupling.Mod;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.ClientCouplingsDao;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingType;
+import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+/**
+ * Client side
+ * <p>
+ * Compares the digests of the server with the couplings known to the client, and asks for a resync of every
+ * run of carts which differs.
+ */
+public class CouplingDigestMessageHandler implements IMessageHandler<CouplingDigestMessage, IMessage> {
+
+    @Override
+    public IMessage onMessage(CouplingDigestMessage message, MessageContext ctx) {
+        Mod.proxy.addClientMessage(message);
+
+        return null;
+    }
+
+    /**
+     * Called on the main thread, once the client packet inbox is drained.
+     */
+    public static void apply(CouplingDigestMessage message, World world) {
+        IntList mismatched = new IntArrayList();
+        for (CouplingDigest digest : message.digests) {
+            EntityMinecart anchor = CartTools.getCartFromId(world, digest.anchorId);
+            // A cart which has not been spawned yet is caught up with once it is
+            if (anchor != null && hashCouplings(digest.anchorId) != digest.hash)
+                mismatched.add(digest.anchorId);
+        }
+        if (!mismatched.isEmpty())
+            ClientServerCommunication.sendCouplingResyncRequest(mismatched.toIntArray());
+    }
+
+    /**
+     * Hashes the couplings of all carts reachable from the anchor, in the same way as the server.
+     */
+    private static int hashCouplings(int anchorId) {
+        ClientCouplingsDao dao = ClientCouplingsDao.INSTANCE;
+        IntSet visited = new IntOpenHashSet();
+        IntArrayList open = new IntArrayList();
+        visited.add(anchorId);
+        open.add(anchorId);
+        int hash = 0;
+        while (!open.isEmpty()) {
+            int cartId = open.popInt();
+            for (CouplingType type : CouplingType.VALUES) {
+                int otherId = dao.getCoupledId(cartId, type);
+                if (otherId != ClientCouplingsDao.NO_CART && visited.add(otherId)) {
+                    hash += CouplingDigest.hashCoupling(cartId, otherId);
+                    open.add(otherId);
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,107 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+import com.lukeneedham.minecartcoupling.common.carts.Train;
+import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side
+ * <p>
+ * Periodically sends every player the digests of the coupled carts they are tracking, so that a client which missed
+ * an update can notice and ask for a resync, instead of staying wrong until the next change.
+ * <p>
+ * A digest covers a run of neighbouring carts of a train which the player is tracking,
+ * since the client cannot know about any other cart.
+ */
+public enum CouplingDigestSender {
+    INSTANCE;
+
+    private static final int DIGEST_INTERVAL = 100;
+    /**
+     * Upper bound of the digests in one message, which keeps it well below the max payload size.
+     */
+    private static final int MAX_DIGESTS_PER_MESSAGE = 4096;
+
+    private int ticks;
+    private final List<EntityMinecart> trainCarts = new ArrayList<>();
+    private final List<Set<EntityPlayerMP>> cartTrackers = new ArrayList<>();
+    private final Set<EntityPlayerMP> trainTrackers = new LinkedHashSet<>();
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || ++ticks < DIGEST_INTERVAL)
+            return;
+        ticks = 0;
+
+        Map<EntityPlayerMP, List<CouplingDigest>> playerDigests = new LinkedHashMap<>();
+        for (WorldServer world : DimensionManager.getWorlds()) {
+            for (Train train : Train.getTrains(world)) {
+                if (!train.isDead() && train.size() > 1)
+                    addDigests(train, playerDigests);
+            }
+        }
+
+        for (Map.Entry<EntityPlayerMP, List<CouplingDigest>> entry : playerDigests.entrySet()) {
+            List<CouplingDigest> digests = entry.getValue();
+            for (int start = 0; start < digests.size(); start += MAX_DIGESTS_PER_MESSAGE) {
+                int end = Math.min(start + MAX_DIGESTS_PER_MESSAGE, digests.size());
+                ClientServerCommunication.sendCouplingDigests(digests.subList(start, end), entry.getKey());
+            }
+        }
+    }
+
+    private void addDigests(Train train, Map<EntityPlayerMP, List<CouplingDigest>> playerDigests) {
+        List<EntityMinecart> carts = trainCarts;
+        carts.clear();
+        train.resolveCarts(carts);
+        cartTrackers.clear();
+        trainTrackers.clear();
+        for (EntityMinecart cart : carts) {
+            Set<EntityPlayerMP> trackers = cart == null ? null : ClientServerCommunication.getTrackingPlayers(cart);
+            cartTrackers.add(trackers);
+            if (trackers != null)
+                trainTrackers.addAll(trackers);
+        }
+
+        for (EntityPlayerMP player : trainTrackers) {
+            EntityMinecart anchor = null;
+            EntityMinecart previous = null;
+            int hash = 0;
+            for (int i = 0; i <= carts.size(); i++) {
+                EntityMinecart cart = i < carts.size() ? carts.get(i) : null;
+                Set<EntityPlayerMP> trackers = i < carts.size() ? cartTrackers.get(i) : null;
+                if (cart != null && trackers != null && trackers.contains(player)) {
+                    if (previous == null)
+                        anchor = cart;
+                    else
+                        hash += CouplingDigest.hashCoupling(previous.getEntityId(), cart.getEntityId());
+                    previous = cart;
+                    continue;
+                }
+                // The run ends here, only runs with at least one coupling are of interest
+                if (previous != null && previous != anchor) {
+                    playerDigests.computeIfAbsent(player, p -> new ArrayList<>())
+                            .add(new CouplingDigest(anchor.getEntityId(), hash));
+                }
+                anchor = null;
+                previous = null;
+                hash = 0;
+            }
+        }
+        carts.clear();
+        cartTrackers.clear();
+        trainTrackers.clear();
+    }
+}
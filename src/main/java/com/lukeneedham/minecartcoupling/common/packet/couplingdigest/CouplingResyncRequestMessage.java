@@ -0,0 +1,54 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+import com.lukeneedham.minecartcoupling.common.packet.WireFormat;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketBuffer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+/**
+ * Sent by a client whose couplings disagree with a {@link CouplingDigestMessage}, with the anchor ids of the
+ * digests that did not match.
+ */
+public class CouplingResyncRequestMessage implements IMessage {
+    /**
+     * Upper bound of the anchors in one request, so that a client cannot make the server send arbitrarily many snapshots.
+     */
+    public static final int MAX_ANCHORS = 256;
+
+    public int[] anchorIds;
+
+    public CouplingResyncRequestMessage() {
+    }
+
+    public CouplingResyncRequestMessage(int[] anchorIds) {
+        this.anchorIds = anchorIds;
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.readVersion(buffer);
+        int count = buffer.readVarInt();
+        if (count > MAX_ANCHORS)
+            throw new RuntimeException("Too many anchors in CouplingResyncRequest: " + count);
+        anchorIds = new int[count];
+        int previousId = 0;
+        for (int i = 0; i < count; i++) {
+            anchorIds[i] = previousId + WireFormat.decodeZigZag(buffer.readVarInt());
+            previousId = anchorIds[i];
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.writeVersion(buffer);
+        int count = Math.min(anchorIds.length, MAX_ANCHORS);
+        buffer.writeVarInt(count);
+        int previousId = 0;
+        for (int i = 0; i < count; i++) {
+            buffer.writeVarInt(WireFormat.encodeZigZag(anchorIds[i] - previousId));
+            previousId = anchorIds[i];
+        }
+    }
+}
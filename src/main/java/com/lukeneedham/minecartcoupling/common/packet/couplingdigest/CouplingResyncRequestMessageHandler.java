@@ -0,0 +1,36 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingdigest;
+
+import com.lukeneedham.minecartcoupling.common.carts.Train;
+import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import com.lukeneedham.minecartcoupling.common.packet.couplingupdate.CouplingUpdateQueue;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+/**
+ * Server side
+ * <p>
+ * Answers a resync request with a snapshot of the trains of the anchors. Only carts the player is tracking are
+ * considered, as those are the only ones the player was sent digests of.
+ */
+public class CouplingResyncRequestMessageHandler implements IMessageHandler<CouplingResyncRequestMessage, IMessage> {
+
+    @Override
+    public IMessage onMessage(CouplingResyncRequestMessage message, MessageContext ctx) {
+        EntityPlayerMP player = ctx.getServerHandler().player;
+        WorldServer world = player.getServerWorld();
+        world.addScheduledTask(() -> {
+            for (int anchorId : message.anchorIds) {
+                EntityMinecart cart = CartTools.getCartFromId(world, anchorId);
+                if (cart != null && ClientServerCommunication.isTracking(player, cart))
+                    Train.get(cart).ifPresent(train -> CouplingUpdateQueue.INSTANCE.addSnapshot(player, train));
+            }
+        });
+
+        return null;
+    }
+}
@@ -1,6 +1,8 @@
 package com.lukeneedham.minecartcoupling.common.packet.couplingprogress;
 
+import com.lukeneedham.minecartcoupling.common.packet.WireFormat;
 import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketBuffer;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 
 public class CouplingProgressStateMessage implements IMessage {
@@ -16,16 +18,18 @@ public class CouplingProgressStateMessage implements IMessage {
 
     @Override
     public void fromBytes(ByteBuf buf) {
-        int type = buf.readInt();
-        int cartId = buf.readInt();
-        int playerId = buf.readInt();
-        state = CouplingProgressState.from(type, cartId, playerId);
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.readVersion(buffer);
+        long header = buffer.readVarLong();
+        int playerId = buffer.readVarInt();
+        state = CouplingProgressState.from(WireFormat.headerType(header), WireFormat.headerValue(header), playerId);
     }
 
     @Override
     public void toBytes(ByteBuf buf) {
-        buf.writeInt(state.type);
-        buf.writeInt(state.cartId);
-        buf.writeInt(state.playerId);
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.writeVersion(buffer);
+        WireFormat.writeHeader(buffer, state.type, state.cartId);
+        buffer.writeVarInt(state.playerId);
     }
-}
\ No newline at end of file
+}
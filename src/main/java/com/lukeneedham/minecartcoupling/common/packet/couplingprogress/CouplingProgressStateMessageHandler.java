@@ -1,5 +1,6 @@
 package com.lukeneedham.minecartcoupling.common.packet.couplingprogress;
 
+import com.lukeneedham.minecartcoupling.Mod;
 import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsInProgressDao;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
@@ -10,13 +11,20 @@ public class CouplingProgressStateMessageHandler implements IMessageHandler<Coup
 
     @Override
     public IMessage onMessage(CouplingProgressStateMessage message, MessageContext ctx) {
+        Mod.proxy.addClientMessage(message);
+
+        return null;
+    }
+
+    /**
+     * Called on the main thread, once the client packet inbox is drained.
+     */
+    public static void apply(CouplingProgressStateMessage message) {
         CouplingProgressState state = message.state;
         if (state.type == CouplingProgressState.Started.TYPE) {
             CouplingsInProgressDao.CLIENT_INSTANCE.couplingInProgressMap.put(state.playerId, state.cartId);
         } else {
             CouplingsInProgressDao.CLIENT_INSTANCE.couplingInProgressMap.remove(state.playerId);
         }
-
-        return null;
     }
-}
\ No newline at end of file
+}
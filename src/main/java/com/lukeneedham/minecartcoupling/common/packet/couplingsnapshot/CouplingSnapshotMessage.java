@@ -0,0 +1,64 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot;
+
+import com.lukeneedham.minecartcoupling.common.packet.WireFormat;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketBuffer;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The current couplings of whole trains.
+ * <p>
+ * Each chain holds the entity ids of neighbouring coupled carts, in order, so every two consecutive ids are a coupling.
+ * A chain is written as its length and first id, followed by the difference of each id to the previous one.
+ * Carts of a train are usually spawned together and so have close ids, which makes most differences fit a single byte.
+ */
+public class CouplingSnapshotMessage implements IMessage {
+
+    public List<int[]> chains;
+
+    public CouplingSnapshotMessage() {
+    }
+
+    public CouplingSnapshotMessage(List<int[]> chains) {
+        this.chains = chains;
+    }
+
+    @Override
+    public void fromBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.readVersion(buffer);
+        int count = buffer.readVarInt();
+        chains = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.readVarInt();
+            // Every id takes at least one byte
+            if (length > buffer.readableBytes())
+                throw new RuntimeException("CouplingSnapshot chain length exceeds message: " + length);
+            int[] chain = new int[length];
+            int id = 0;
+            for (int j = 0; j < length; j++) {
+                id += WireFormat.decodeZigZag(buffer.readVarInt());
+                chain[j] = id;
+            }
+            chains.add(chain);
+        }
+    }
+
+    @Override
+    public void toBytes(ByteBuf buf) {
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.writeVersion(buffer);
+        buffer.writeVarInt(chains.size());
+        for (int[] chain : chains) {
+            buffer.writeVarInt(chain.length);
+            int previous = 0;
+            for (int id : chain) {
+                buffer.writeVarInt(WireFormat.encodeZigZag(id - previous));
+                previous = id;
+            }
+        }
+    }
+}
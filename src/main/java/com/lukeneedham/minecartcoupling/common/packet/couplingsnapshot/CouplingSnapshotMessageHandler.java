@@ -0,0 +1,55 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot;
+
+import com.lukeneedham.minecartcoupling.Mod;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.ClientCouplingsDao;
+import com.lukeneedham.minecartcoupling.common.packet.ParkedActions;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import net.minecraft.world.World;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+
+/**
+ * Client side
+ * <p>
+ * A snapshot replaces whatever the client knew about the couplings of the carts in it.
+ */
+public class CouplingSnapshotMessageHandler implements IMessageHandler<CouplingSnapshotMessage, IMessage> {
+
+    @Override
+    public IMessage onMessage(CouplingSnapshotMessage message, MessageContext ctx) {
+        Mod.proxy.addClientMessage(message);
+
+        return null;
+    }
+
+    /**
+     * Called on the main thread, once the client packet inbox is drained.
+     */
+    public static void apply(CouplingSnapshotMessage message, World world) {
+        for (int[] chain : message.chains) {
+            ParkedActions.INSTANCE.cancelParkedWithAny(chain);
+            applyChain(chain, world);
+        }
+    }
+
+    private static void applyChain(int[] chain, World world) {
+        ClientCouplingsDao dao = ClientCouplingsDao.INSTANCE;
+        boolean[] spawned = new boolean[chain.length];
+        boolean complete = true;
+        for (int i = 0; i < chain.length; i++) {
+            spawned[i] = CartTools.getCartFromId(world, chain[i]) != null;
+            if (spawned[i])
+                dao.breakCouplings(chain[i]);
+            else
+                complete = false;
+        }
+        for (int i = 0; i + 1 < chain.length; i++) {
+            if (spawned[i] && spawned[i + 1])
+                dao.createCoupling(chain[i], chain[i + 1]);
+        }
+        // Apply the chain again once every cart in it has joined
+        if (!complete)
+            ParkedActions.INSTANCE.park(chain, () -> applyChain(chain, world));
+    }
+}
@@ -1,64 +1,97 @@
 package com.lukeneedham.minecartcoupling.common.packet.couplingupdate;
 
+import com.lukeneedham.minecartcoupling.common.packet.WireFormat;
 import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketBuffer;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of coupling updates.
+ * <p>
+ * Each record starts with a varint holding the type in its low bits and the difference of its first cart id
+ * to the first cart id of the previous record. Pair records then hold the difference of their second cart id
+ * to their first. A coupling of two neighbouring carts is usually 2 or 3 bytes.
+ */
 public class CouplingUpdateMessage implements IMessage {
 
-    public CouplingUpdate update;
+    public List<CouplingUpdate> updates;
 
     public CouplingUpdateMessage() {
     }
 
-    public CouplingUpdateMessage(CouplingUpdate update) {
-        this.update = update;
+    public CouplingUpdateMessage(List<CouplingUpdate> updates) {
+        this.updates = updates;
     }
 
     @Override
     public void fromBytes(ByteBuf buf) {
-        int type = buf.readInt();
-        switch (type) {
-            case CouplingUpdate.Created.TYPE: {
-                int cart1Id = buf.readInt();
-                int cart2Id = buf.readInt();
-                update = new CouplingUpdate.Created(cart1Id, cart2Id);
-                break;
-            }
-            case CouplingUpdate.Broken.TYPE: {
-                int cart1Id = buf.readInt();
-                int cart2Id = buf.readInt();
-                update = new CouplingUpdate.Broken(cart1Id, cart2Id);
-                break;
-            }
-            case CouplingUpdate.AllBroken.TYPE: {
-                int cartId = buf.readInt();
-                update = new CouplingUpdate.AllBroken(cartId);
-                break;
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.readVersion(buffer);
+        int count = buffer.readVarInt();
+        // Every record takes at least one byte
+        if (count > buffer.readableBytes())
+            throw new RuntimeException("CouplingUpdate count exceeds message: " + count);
+        updates = new ArrayList<>(count);
+        int previousId = 0;
+        for (int i = 0; i < count; i++) {
+            long header = buffer.readVarLong();
+            int type = WireFormat.headerType(header);
+            int cartId = previousId + WireFormat.headerValue(header);
+            previousId = cartId;
+            switch (type) {
+                case CouplingUpdate.Created.TYPE: {
+                    int otherId = cartId + WireFormat.decodeZigZag(buffer.readVarInt());
+                    updates.add(new CouplingUpdate.Created(cartId, otherId));
+                    break;
+                }
+                case CouplingUpdate.Broken.TYPE: {
+                    int otherId = cartId + WireFormat.decodeZigZag(buffer.readVarInt());
+                    updates.add(new CouplingUpdate.Broken(cartId, otherId));
+                    break;
+                }
+                case CouplingUpdate.AllBroken.TYPE: {
+                    updates.add(new CouplingUpdate.AllBroken(cartId));
+                    break;
+                }
+                default: {
+                    throw new RuntimeException("Unhandled CouplingUpdate type: " + type);
+                }
             }
         }
     }
 
     @Override
     public void toBytes(ByteBuf buf) {
-        buf.writeInt(update.type);
-        switch (update.type) {
-            case CouplingUpdate.Created.TYPE: {
-                CouplingUpdate.Created createdUpdate = (CouplingUpdate.Created) update;
-                buf.writeInt(createdUpdate.cart1Id);
-                buf.writeInt(createdUpdate.cart2Id);
-                break;
-            }
-            case CouplingUpdate.Broken.TYPE: {
-                CouplingUpdate.Broken brokenUpdate = (CouplingUpdate.Broken) update;
-                buf.writeInt(brokenUpdate.cart1Id);
-                buf.writeInt(brokenUpdate.cart2Id);
-                break;
-            }
-            case CouplingUpdate.AllBroken.TYPE: {
-                CouplingUpdate.AllBroken allBrokenUpdate = (CouplingUpdate.AllBroken) update;
-                buf.writeInt(allBrokenUpdate.cartId);
-                break;
+        PacketBuffer buffer = new PacketBuffer(buf);
+        WireFormat.writeVersion(buffer);
+        buffer.writeVarInt(updates.size());
+        int previousId = 0;
+        for (CouplingUpdate update : updates) {
+            switch (update.type) {
+                case CouplingUpdate.Created.TYPE: {
+                    CouplingUpdate.Created createdUpdate = (CouplingUpdate.Created) update;
+                    WireFormat.writeHeader(buffer, update.type, createdUpdate.cart1Id - previousId);
+                    buffer.writeVarInt(WireFormat.encodeZigZag(createdUpdate.cart2Id - createdUpdate.cart1Id));
+                    previousId = createdUpdate.cart1Id;
+                    break;
+                }
+                case CouplingUpdate.Broken.TYPE: {
+                    CouplingUpdate.Broken brokenUpdate = (CouplingUpdate.Broken) update;
+                    WireFormat.writeHeader(buffer, update.type, brokenUpdate.cart1Id - previousId);
+                    buffer.writeVarInt(WireFormat.encodeZigZag(brokenUpdate.cart2Id - brokenUpdate.cart1Id));
+                    previousId = brokenUpdate.cart1Id;
+                    break;
+                }
+                case CouplingUpdate.AllBroken.TYPE: {
+                    CouplingUpdate.AllBroken allBrokenUpdate = (CouplingUpdate.AllBroken) update;
+                    WireFormat.writeHeader(buffer, update.type, allBrokenUpdate.cartId - previousId);
+                    previousId = allBrokenUpdate.cartId;
+                    break;
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
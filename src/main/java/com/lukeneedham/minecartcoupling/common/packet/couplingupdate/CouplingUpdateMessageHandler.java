@@ -1,8 +1,10 @@
 package com.lukeneedham.minecartcoupling.common.packet.couplingupdate;
 
-import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingsDao;
-import net.minecraft.client.Minecraft;
-import net.minecraft.entity.item.EntityMinecart;
+import com.lukeneedham.minecartcoupling.Mod;
+import com.lukeneedham.minecartcoupling.common.carts.coupling.ClientCouplingsDao;
+import com.lukeneedham.minecartcoupling.common.packet.ParkedActions;
+import com.lukeneedham.minecartcoupling.common.util.CartTools;
+import net.minecraft.world.World;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
 import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
 import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
@@ -14,34 +16,49 @@ public class CouplingUpdateMessageHandler implements IMessageHandler<CouplingUpd
 
     @Override
     public IMessage onMessage(CouplingUpdateMessage message, MessageContext ctx) {
-        CouplingUpdate update = message.update;
+        Mod.proxy.addClientMessage(message);
+
+        return null;
+    }
+
+    /**
+     * Called on the main thread, once the client packet inbox is drained.
+     */
+    public static void apply(CouplingUpdateMessage message, World world) {
+        for (CouplingUpdate update : message.updates) {
+            applyUpdate(update, world);
+        }
+    }
+
+    private static void applyUpdate(CouplingUpdate update, World world) {
+        ParkedActions parked = ParkedActions.INSTANCE;
         switch (update.type) {
             case CouplingUpdate.Created.TYPE: {
                 CouplingUpdate.Created createdUpdate = (CouplingUpdate.Created) update;
-                EntityMinecart cart1 = getMinecartFromId(createdUpdate.cart1Id);
-                EntityMinecart cart2 = getMinecartFromId(createdUpdate.cart2Id);
-                CouplingsDao.CLIENT_INSTANCE.createCoupling(cart1, cart2);
+                int cart1Id = createdUpdate.cart1Id;
+                int cart2Id = createdUpdate.cart2Id;
+                if (isSpawned(world, cart1Id) && isSpawned(world, cart2Id))
+                    ClientCouplingsDao.INSTANCE.createCoupling(cart1Id, cart2Id);
+                else
+                    parked.park(new int[]{cart1Id, cart2Id}, () -> ClientCouplingsDao.INSTANCE.createCoupling(cart1Id, cart2Id));
                 break;
             }
             case CouplingUpdate.Broken.TYPE: {
                 CouplingUpdate.Broken brokenUpdate = (CouplingUpdate.Broken) update;
-                EntityMinecart cart1 = getMinecartFromId(brokenUpdate.cart1Id);
-                EntityMinecart cart2 = getMinecartFromId(brokenUpdate.cart2Id);
-                CouplingsDao.CLIENT_INSTANCE.breakCoupling(cart1, cart2);
+                parked.cancelParkedWithAll(brokenUpdate.cart1Id, brokenUpdate.cart2Id);
+                ClientCouplingsDao.INSTANCE.breakCoupling(brokenUpdate.cart1Id, brokenUpdate.cart2Id);
                 break;
             }
             case CouplingUpdate.AllBroken.TYPE: {
                 CouplingUpdate.AllBroken allBrokenUpdate = (CouplingUpdate.AllBroken) update;
-                EntityMinecart cart = getMinecartFromId(allBrokenUpdate.cartId);
-                CouplingsDao.CLIENT_INSTANCE.breakCouplings(cart);
+                parked.cancelParkedWithAny(allBrokenUpdate.cartId);
+                ClientCouplingsDao.INSTANCE.breakCouplings(allBrokenUpdate.cartId);
                 break;
             }
         }
-
-        return null;
     }
 
-    private EntityMinecart getMinecartFromId(int entityId) {
-        return (EntityMinecart) Minecraft.getMinecraft().world.getEntityByID(entityId);
+    private static boolean isSpawned(World world, int entityId) {
+        return CartTools.getCartFromId(world, entityId) != null;
     }
-}
\ No newline at end of file
+}
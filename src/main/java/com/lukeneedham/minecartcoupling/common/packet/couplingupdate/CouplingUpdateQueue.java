@@ -0,0 +1,248 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingupdate;
+
+import com.lukeneedham.minecartcoupling.common.carts.Train;
+import com.lukeneedham.minecartcoupling.common.packet.ClientServerCommunication;
+import com.lukeneedham.minecartcoupling.common.packet.couplingsnapshot.CouplingSnapshotMessage;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server side
+ * <p>
+ * Collects the coupling updates of a tick, and sends them at the end of the tick in one message per player.
+ * Updates which cancel each other out, like a coupling that is created and broken again in the same tick, are never sent.
+ * <p>
+ * A player who starts watching a chunk or tracking a cart has missed all earlier updates about the carts in it,
+ * so they are sent a {@link CouplingSnapshotMessage} of their trains after the updates of the tick.
+ */
+public enum CouplingUpdateQueue {
+    INSTANCE;
+
+    /**
+     * Upper bound of the updates in one message, which keeps it well below the max payload size.
+     */
+    static final int MAX_UPDATES_PER_MESSAGE = 8192;
+
+    /**
+     * Pending updates, in order. Cancelled updates are set to null.
+     */
+    private final List<PendingUpdate> pending = new ArrayList<>();
+    /**
+     * Index in pending of the last update of each coupled pair.
+     * Entity ids are unique across all worlds of the server, so a pair identifies the same carts in every dimension.
+     */
+    private final Map<Long, Integer> pairUpdates = new HashMap<>();
+    /**
+     * Indices in pending of the updates involving each cart, so that breaking all couplings of a cart
+     * only has to look at its own updates. May still hold the indices of updates that were cancelled since.
+     */
+    private final Int2ObjectMap<IntList> cartUpdates = new Int2ObjectOpenHashMap<>();
+    /**
+     * Trains to send a snapshot of, per player. A train is only sent once per tick, however many of its carts were seen.
+     */
+    private final Map<EntityPlayerMP, Set<Train>> snapshots = new LinkedHashMap<>();
+    private final List<EntityMinecart> trainCarts = new ArrayList<>();
+
+    public void add(CouplingUpdate update, Set<EntityPlayerMP> players) {
+        if (players.isEmpty())
+            return;
+        switch (update.type) {
+            case CouplingUpdate.Created.TYPE: {
+                CouplingUpdate.Created createdUpdate = (CouplingUpdate.Created) update;
+                addPairUpdate(update, players, createdUpdate.cart1Id, createdUpdate.cart2Id);
+                break;
+            }
+            case CouplingUpdate.Broken.TYPE: {
+                CouplingUpdate.Broken brokenUpdate = (CouplingUpdate.Broken) update;
+                addPairUpdate(update, players, brokenUpdate.cart1Id, brokenUpdate.cart2Id);
+                break;
+            }
+            case CouplingUpdate.AllBroken.TYPE: {
+                addAllBrokenUpdate((CouplingUpdate.AllBroken) update, players);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Queues a snapshot of the current couplings of the train, for a player who just started seeing some of its carts.
+     */
+    public void addSnapshot(EntityPlayerMP player, Train train) {
+        if (train.size() > 1)
+            snapshots.computeIfAbsent(player, p -> new LinkedHashSet<>()).add(train);
+    }
+
+    /**
+     * A pair update cancels the pending update of the same pair if it is of the opposite kind,
+     * and is merged into it if it is of the same kind.
+     */
+    private void addPairUpdate(CouplingUpdate update, Set<EntityPlayerMP> players, int cart1Id, int cart2Id) {
+        long pair = pairKey(cart1Id, cart2Id);
+        Integer index = pairUpdates.get(pair);
+        if (index != null) {
+            PendingUpdate previous = pending.get(index);
+            if (previous.update.type != update.type) {
+                pending.set(index, null);
+                pairUpdates.remove(pair);
+            } else {
+                previous.players.addAll(players);
+            }
+            return;
+        }
+        pairUpdates.put(pair, pending.size());
+        addCartUpdate(cart1Id);
+        addCartUpdate(cart2Id);
+        pending.add(new PendingUpdate(update, players, pair));
+    }
+
+    /**
+     * Breaking all couplings of a cart supersedes any pending update involving the cart.
+     */
+    private void addAllBrokenUpdate(CouplingUpdate.AllBroken update, Set<EntityPlayerMP> players) {
+        IntList indices = cartUpdates.remove(update.cartId);
+        if (indices != null) {
+            for (int i = 0; i < indices.size(); i++) {
+                int index = indices.getInt(i);
+                PendingUpdate previous = pending.get(index);
+                if (previous == null)
+                    continue;
+                players.addAll(previous.players);
+                pending.set(index, null);
+                if (previous.update.type != CouplingUpdate.AllBroken.TYPE)
+                    pairUpdates.remove(previous.pair, index);
+            }
+        }
+        addCartUpdate(update.cartId);
+        pending.add(new PendingUpdate(update, players, 0));
+    }
+
+    /**
+     * Records that the next pending update involves the cart.
+     */
+    private void addCartUpdate(int cartId) {
+        IntList indices = cartUpdates.get(cartId);
+        if (indices == null) {
+            indices = new IntArrayList();
+            cartUpdates.put(cartId, indices);
+        }
+        indices.add(pending.size());
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || (pending.isEmpty() && snapshots.isEmpty()))
+            return;
+        Map<EntityPlayerMP, List<CouplingUpdate>> playerUpdates = new LinkedHashMap<>();
+        for (PendingUpdate pendingUpdate : pending) {
+            if (pendingUpdate == null)
+                continue;
+            for (EntityPlayerMP player : pendingUpdate.players) {
+                playerUpdates.computeIfAbsent(player, p -> new ArrayList<>()).add(pendingUpdate.update);
+            }
+        }
+        pending.clear();
+        pairUpdates.clear();
+        cartUpdates.clear();
+
+        for (Map.Entry<EntityPlayerMP, List<CouplingUpdate>> entry : playerUpdates.entrySet()) {
+            for (List<CouplingUpdate> batch : split(entry.getValue())) {
+                ClientServerCommunication.sendCouplingUpdates(batch, entry.getKey());
+            }
+        }
+
+        // Sent after the updates, as they describe the state at the end of the tick
+        for (Map.Entry<EntityPlayerMP, Set<Train>> entry : snapshots.entrySet()) {
+            List<int[]> chains = new ArrayList<>();
+            int size = 0;
+            for (Train train : entry.getValue()) {
+                if (train.isDead())
+                    continue;
+                size += addChains(train, entry.getKey(), chains);
+                if (size >= MAX_UPDATES_PER_MESSAGE) {
+                    ClientServerCommunication.sendCouplingSnapshot(chains, entry.getKey());
+                    chains = new ArrayList<>();
+                    size = 0;
+                }
+            }
+            if (!chains.isEmpty())
+                ClientServerCommunication.sendCouplingSnapshot(chains, entry.getKey());
+        }
+        snapshots.clear();
+    }
+
+    /**
+     * Splits the updates of a player into the batches sent as one message each, in order.
+     */
+    static List<List<CouplingUpdate>> split(List<CouplingUpdate> updates) {
+        List<List<CouplingUpdate>> batches = new ArrayList<>();
+        for (int start = 0; start < updates.size(); start += MAX_UPDATES_PER_MESSAGE) {
+            int end = Math.min(start + MAX_UPDATES_PER_MESSAGE, updates.size());
+            batches.add(updates.subList(start, end));
+        }
+        return batches;
+    }
+
+    /**
+     * Adds the runs of carts of the train the player is tracking as chains of entity ids.
+     * Other carts split the train, as the client cannot know about them.
+     *
+     * @return the number of ids added
+     */
+    private int addChains(Train train, EntityPlayerMP player, List<int[]> chains) {
+        List<EntityMinecart> carts = trainCarts;
+        carts.clear();
+        train.resolveCarts(carts);
+        int added = 0;
+        int start = 0;
+        for (int i = 0; i <= carts.size(); i++) {
+            if (i < carts.size() && carts.get(i) != null && ClientServerCommunication.isTracking(player, carts.get(i)))
+                continue;
+            if (i - start > 1) {
+                int[] chain = new int[i - start];
+                for (int j = start; j < i; j++) {
+                    chain[j - start] = carts.get(j).getEntityId();
+                }
+                chains.add(chain);
+                added += chain.length;
+            }
+            start = i + 1;
+        }
+        carts.clear();
+        return added;
+    }
+
+    private static long pairKey(int cart1Id, int cart2Id) {
+        int min = Math.min(cart1Id, cart2Id);
+        int max = Math.max(cart1Id, cart2Id);
+        return ((long) min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    private static final class PendingUpdate {
+        final CouplingUpdate update;
+        final Set<EntityPlayerMP> players;
+        /**
+         * Key of the coupled pair, unused for updates which break all couplings of a cart.
+         */
+        final long pair;
+
+        PendingUpdate(CouplingUpdate update, Set<EntityPlayerMP> players, long pair) {
+            this.update = update;
+            this.players = players;
+            this.pair = pair;
+        }
+    }
+}
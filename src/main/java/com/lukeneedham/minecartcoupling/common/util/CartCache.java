@@ -0,0 +1,177 @@
+package com.lukeneedham.minecartcoupling.common.util;
+
+import com.google.common.collect.MapMaker;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.entity.item.EntityMinecart;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A cache of all minecarts currently loaded in a world, keyed by their persistent UUID.
+ * <p>
+ * It is kept up to date from the world's entity added and removed callbacks,
+ * which are fired both when carts are spawned or killed and when their chunk is loaded or unloaded.
+ * <p>
+ * Lookups are a single probe into an open addressing table holding the packed bits of the UUIDs,
+ * so no UUID has to be allocated to find a cart. Carts are also indexed by entity id,
+ * which is how the client refers to them.
+ */
+public final class CartCache {
+    private static final Map<World, CartCache> instances = new MapMaker().weakKeys().makeMap();
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Most and least significant bits of the UUID in each slot, interleaved.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY * 2];
+    private EntityMinecart[] carts = new EntityMinecart[INITIAL_CAPACITY];
+    private int size;
+    private final Int2ObjectMap<EntityMinecart> cartsById = new Int2ObjectOpenHashMap<>();
+
+    private CartCache() {
+    }
+
+    public static CartCache forWorld(World world) {
+        return instances.computeIfAbsent(world, w -> new CartCache());
+    }
+
+    /**
+     * Stops tracking the carts of the world, called when it is unloaded.
+     */
+    public static void unload(World world) {
+        CartCache cache = instances.remove(world);
+        if (cache != null)
+            cache.clear();
+    }
+
+    /**
+     * Returns the cache of the world, or null if its carts are not being tracked.
+     */
+    public static @Nullable
+    CartCache get(World world) {
+        return instances.get(world);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public @Nullable
+    EntityMinecart get(UUID id) {
+        return get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    public @Nullable
+    EntityMinecart get(long most, long least) {
+        int mask = carts.length - 1;
+        for (int slot = hash(most, least) & mask; carts[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot * 2] == most && keys[slot * 2 + 1] == least)
+                return carts[slot];
+        }
+        return null;
+    }
+
+    public @Nullable
+    EntityMinecart get(int entityId) {
+        return cartsById.get(entityId);
+    }
+
+    public void add(EntityMinecart cart) {
+        cartsById.put(cart.getEntityId(), cart);
+        UUID id = cart.getPersistentID();
+        long most = id.getMostSignificantBits();
+        long least = id.getLeastSignificantBits();
+        int mask = carts.length - 1;
+        int slot = hash(most, least) & mask;
+        for (; carts[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot * 2] == most && keys[slot * 2 + 1] == least) {
+                carts[slot] = cart;
+                return;
+            }
+        }
+        keys[slot * 2] = most;
+        keys[slot * 2 + 1] = least;
+        carts[slot] = cart;
+        if (++size * 4 > carts.length * 3)
+            resize(carts.length * 2);
+    }
+
+    /**
+     * Removes the cart, unless its UUID is mapped to another entity by now.
+     */
+    public void remove(EntityMinecart cart) {
+        if (cartsById.get(cart.getEntityId()) == cart)
+            cartsById.remove(cart.getEntityId());
+        UUID id = cart.getPersistentID();
+        long most = id.getMostSignificantBits();
+        long least = id.getLeastSignificantBits();
+        int mask = carts.length - 1;
+        for (int slot = hash(most, least) & mask; carts[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot * 2] == most && keys[slot * 2 + 1] == least) {
+                if (carts[slot] == cart)
+                    removeSlot(slot);
+                return;
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(carts, null);
+        size = 0;
+        cartsById.clear();
+    }
+
+    /**
+     * Backward shift deletion, which keeps every probe sequence free of holes without using tombstones.
+     */
+    private void removeSlot(int slot) {
+        int mask = carts.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; carts[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next * 2], keys[next * 2 + 1]) & mask;
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, next]
+            boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!between) {
+                keys[hole * 2] = keys[next * 2];
+                keys[hole * 2 + 1] = keys[next * 2 + 1];
+                carts[hole] = carts[next];
+                hole = next;
+            }
+        }
+        carts[hole] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        EntityMinecart[] oldCarts = carts;
+        keys = new long[capacity * 2];
+        carts = new EntityMinecart[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldCarts.length; i++) {
+            if (oldCarts[i] == null)
+                continue;
+            long most = oldKeys[i * 2];
+            long least = oldKeys[i * 2 + 1];
+            int slot = hash(most, least) & mask;
+            while (carts[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot * 2] = most;
+            keys[slot * 2 + 1] = least;
+            carts[slot] = oldCarts[i];
+        }
+    }
+
+    private static int hash(long most, long least) {
+        long h = most ^ (least * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
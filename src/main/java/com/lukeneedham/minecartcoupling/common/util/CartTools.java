@@ -33,6 +33,10 @@ public final class CartTools {
         if (world == null || id == null) {
             return null;
         }
+        CartCache cache = CartCache.get(world);
+        if (cache != null) {
+            return cache.get(id);
+        }
         if (world instanceof WorldServer) {
             Entity entity = ((WorldServer) world).getEntityFromUuid(id);
             if (entity instanceof EntityMinecart && entity.isEntityAlive()) {
@@ -47,4 +51,20 @@ public final class CartTools {
         return null;
     }
 
+    /**
+     * Returns a loaded minecart from its entity id.
+     *
+     * @param entityId Cart's entity id
+     * @return EntityMinecart
+     */
+    public static @Nullable
+    EntityMinecart getCartFromId(World world, int entityId) {
+        CartCache cache = CartCache.get(world);
+        if (cache != null) {
+            return cache.get(entityId);
+        }
+        Entity entity = world.getEntityByID(entityId);
+        return entity instanceof EntityMinecart ? (EntityMinecart) entity : null;
+    }
+
 }
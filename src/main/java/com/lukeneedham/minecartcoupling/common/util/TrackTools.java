@@ -12,6 +12,7 @@ package com.lukeneedham.minecartcoupling.common.util;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockRailBase;
 import net.minecraft.block.BlockRailBase.EnumRailDirection;
+import net.minecraft.block.BlockRailPowered;
 import net.minecraft.block.properties.IProperty;
 import net.minecraft.block.state.IBlockState;
 import net.minecraft.entity.item.EntityMinecart;
@@ -43,6 +44,11 @@ public final class TrackTools {
         return block instanceof BlockRailBase;
     }
 
+    public static boolean isPoweredRailAt(IBlockAccess world, BlockPos pos) {
+        IBlockState state = WorldPlugin.getBlockState(world, pos);
+        return state.getBlock() instanceof BlockRailPowered && state.getValue(BlockRailPowered.POWERED);
+    }
+
     public static EnumRailDirection getTrackDirection(IBlockAccess world, BlockPos pos, IBlockState state) {
         return getTrackDirection(world, pos, state, null);
     }
@@ -0,0 +1,194 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The solvers run for every awake train on every tick, so once warmed up they must not allocate at all.
+ */
+public class TrainSolverAllocationTest {
+    private static final int CARTS = 200;
+    /**
+     * Sizes of the trains of the world tick test, which share one {@link TrainState} like the coupling handler does.
+     */
+    private static final int[] TRAIN_SIZES = {2, 7, 30, 120, 3};
+    private static final int WARM_UP_TICKS = 20000;
+    private static final int MEASURED_TICKS = 20000;
+    private static final double OPTIMAL_DISTANCE = 1.33;
+    private static final double DRAG = 0.95;
+    /**
+     * Reading the allocated bytes may allocate a little by itself, which is well below a byte per measured tick.
+     */
+    private static final long TOLERANCE = 1024;
+
+    private final TrainState state = new TrainState();
+    private final double[] posX = new double[CARTS];
+    private final double[] posZ = new double[CARTS];
+    private final double[] velX = new double[CARTS];
+    private final double[] velZ = new double[CARTS];
+    private TrainPath path;
+    private final List<TestTrain> trains = new ArrayList<>();
+    private final Set<TestTrain> updatedSet = new ObjectOpenHashSet<>();
+    private final List<TestTrain> updatedList = new ArrayList<>();
+    private final List<TestTrain> worldTrains = new ArrayList<>();
+
+    @Test
+    public void solveLoopDoesNotAllocate() {
+        for (int i = 0; i < CARTS; i++) {
+            posX[i] = -i * OPTIMAL_DISTANCE;
+            posZ[i] = i % 7 * 0.01;
+        }
+        path = new TrainPath(gather(), 0, true, OPTIMAL_DISTANCE);
+        assertNoAllocation(this::tick);
+    }
+
+    /**
+     * The path of a world tick through the coupling handler, minus the entities: every cart marks its train
+     * as updated, and the world tick then gathers each updated train into the shared state, checks whether
+     * it is at rest, and solves it the way its timestep calls for.
+     */
+    @Test
+    public void worldTickDoesNotAllocate() {
+        for (int size : TRAIN_SIZES) {
+            trains.add(new TestTrain(size));
+        }
+        assertNoAllocation(this::worldTick);
+    }
+
+    private void assertNoAllocation(IntConsumer ticker) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        for (int tick = 0; tick < WARM_UP_TICKS; tick++) {
+            ticker.accept(tick);
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int tick = 0; tick < MEASURED_TICKS; tick++) {
+            ticker.accept(WARM_UP_TICKS + tick);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue("Allocated " + allocated + " bytes over " + MEASURED_TICKS + " ticks", allocated <= TOLERANCE);
+    }
+
+    private void worldTick(int tick) {
+        // Per cart update, every cart of a train adds the same train
+        for (int i = 0; i < trains.size(); i++) {
+            TestTrain train = trains.get(i);
+            for (int cart = 0; cart < train.size; cart++) {
+                if (updatedSet.add(train))
+                    updatedList.add(train);
+            }
+        }
+        // World tick
+        for (int i = 0; i < updatedList.size(); i++) {
+            worldTrains.add(updatedList.get(i));
+        }
+        updatedSet.clear();
+        updatedList.clear();
+        for (int i = 0; i < worldTrains.size(); i++) {
+            worldTrains.get(i).adjust(state, tick);
+        }
+        worldTrains.clear();
+    }
+
+    /**
+     * One tick of a train pulled by its first cart, through every solver the coupling handler may use.
+     */
+    private void tick(int tick) {
+        velX[0] = 0.4;
+        TrainState state = gather();
+        switch (tick % 3) {
+            case 0:
+                TrainSolver.solveExplicit(state, OPTIMAL_DISTANCE, DRAG);
+                break;
+            case 1:
+                TrainSolver.solveImplicit(state, OPTIMAL_DISTANCE, DRAG, 1 + tick % 4);
+                break;
+            default:
+                // Whichever end leads, the path was started with the first cart as the lead
+                TrainSolver.findLead(state);
+                TrainSolver.solveFollow(state, path, OPTIMAL_DISTANCE);
+                break;
+        }
+        TrainSolver.solveDrawbars(state, OPTIMAL_DISTANCE);
+        for (int i = 0; i < CARTS; i++) {
+            velX[i] = state.velX[i];
+            velZ[i] = state.velZ[i];
+            posX[i] += velX[i];
+            posZ[i] += velZ[i];
+        }
+    }
+
+    /**
+     * A train pulled by its first cart, adjusted the way the coupling handler adjusts a train.
+     */
+    private static final class TestTrain {
+        final int size;
+        final double[] posX, posZ, velX, velZ;
+
+        TestTrain(int size) {
+            this.size = size;
+            posX = new double[size];
+            posZ = new double[size];
+            velX = new double[size];
+            velZ = new double[size];
+            for (int i = 0; i < size; i++) {
+                posX[i] = -i * OPTIMAL_DISTANCE;
+                posZ[i] = size + i % 3 * 0.01;
+            }
+        }
+
+        void adjust(TrainState state, int tick) {
+            // Stopped now and then, so some ticks find the train at rest
+            velX[0] = tick % 400 < 300 ? 0.4 : 0;
+            state.resize(size);
+            for (int i = 0; i < size; i++) {
+                state.set(i, posX[i], 64, posZ[i], velX[i], velZ[i]);
+                if (i + 1 < size) {
+                    state.coupled[i] = true;
+                    state.rigid[i] = i % 4 == 3;
+                }
+            }
+            if (TrainSolver.isAtRest(state, OPTIMAL_DISTANCE, 0.005, 0.1))
+                return;
+            int timestep = 1 + tick % 3;
+            if (timestep > 1)
+                TrainSolver.solveImplicit(state, OPTIMAL_DISTANCE, DRAG, timestep);
+            else
+                TrainSolver.solveExplicit(state, OPTIMAL_DISTANCE, DRAG);
+            TrainSolver.solveDrawbars(state, OPTIMAL_DISTANCE);
+            for (int i = 0; i < size; i++) {
+                velX[i] = state.velX[i];
+                velZ[i] = state.velZ[i];
+                posX[i] += velX[i];
+                posZ[i] += velZ[i];
+            }
+        }
+    }
+
+    private TrainState gather() {
+        state.resize(CARTS);
+        for (int i = 0; i < CARTS; i++) {
+            state.set(i, posX[i], 64, posZ[i], velX[i], velZ[i]);
+            if (i + 1 < CARTS) {
+                state.coupled[i] = true;
+                state.rigid[i] = i % 5 == 0;
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,124 @@
+package com.lukeneedham.minecartcoupling.common.carts.physics;
+
+import com.lukeneedham.minecartcoupling.common.carts.coupling.CouplingHandler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the implicit solver on trains of growing length, without a world.
+ * <p>
+ * The first cart of a straight train at rest is driven at the top speed of a cart on plain rails,
+ * and the rest of the train has to be pulled up to speed through its couplings.
+ */
+public class TrainSolverImplicitTest {
+    private static final double OPTIMAL_DISTANCE = 1.33;
+    private static final double DRAG = 0.95;
+    private static final double LEAD_SPEED = 0.4;
+    private static final int TICKS = 3000;
+    /**
+     * The last ticks, over which the train is expected to have settled.
+     */
+    private static final int SETTLED_TICKS = 500;
+    private static final int[] SIZES = {10, 100, 1000};
+    /**
+     * How much more a cart may cost per tick in the longest train than in the medium one.
+     * The solve is linear in the number of carts, so anything near this is a regression, not noise.
+     */
+    private static final double COST_PER_CART_RATIO = 4;
+    private static final int TIMED_RUNS = 5;
+
+    @Test
+    public void implicitStaysCoupledAtEverySize() {
+        for (int carts : SIZES) {
+            Result implicit = run(carts);
+            assertTrue(carts + " carts: stretch " + implicit.stretch + " expected well within the break distance",
+                    implicit.stretch < CouplingHandler.MAX_DISTANCE / 4);
+        }
+    }
+
+    @Test
+    public void implicitSettles() {
+        for (int carts : SIZES) {
+            Result implicit = run(carts);
+            assertTrue(carts + " carts: stretch still changing by " + implicit.settledRange, implicit.settledRange < 0.01);
+        }
+    }
+
+    @Test
+    public void implicitCostIsLinearInTrainLength() {
+        // Compiles the solver before anything is timed
+        run(1000);
+        double medium = fastestNanosPerCart(100);
+        double longest = fastestNanosPerCart(1000);
+        assertTrue("Cost per cart " + longest + " ns at 1000 carts, " + medium + " ns at 100 carts",
+                longest <= medium * COST_PER_CART_RATIO);
+    }
+
+    /**
+     * @return the lowest time per cart and tick of a few runs, which is the one least disturbed by anything else
+     */
+    private static double fastestNanosPerCart(int carts) {
+        double fastest = Double.MAX_VALUE;
+        for (int run = 0; run < TIMED_RUNS; run++) {
+            fastest = Math.min(fastest, (double) run(carts).nanosPerTick / carts);
+        }
+        return fastest;
+    }
+
+    private static Result run(int carts) {
+        TrainState state = new TrainState();
+        double[] posX = new double[carts];
+        double[] velX = new double[carts];
+        for (int i = 0; i < carts; i++) {
+            posX[i] = -i * OPTIMAL_DISTANCE;
+        }
+        double stretch = 0;
+        double settledMin = Double.MAX_VALUE;
+        double settledMax = 0;
+        long time = 0;
+        for (int tick = 0; tick < TICKS; tick++) {
+            velX[0] = LEAD_SPEED;
+            state.resize(carts);
+            for (int i = 0; i < carts; i++) {
+                state.set(i, posX[i], 64, 0, velX[i], 0);
+                if (i + 1 < carts)
+                    state.coupled[i] = true;
+            }
+
+            long start = System.nanoTime();
+            TrainSolver.solveImplicit(state, OPTIMAL_DISTANCE, DRAG, 1);
+            time += System.nanoTime() - start;
+
+            for (int i = 0; i < carts; i++) {
+                velX[i] = state.velX[i];
+                posX[i] += velX[i];
+            }
+            double tickStretch = 0;
+            for (int i = 0; i + 1 < carts; i++) {
+                tickStretch = Math.max(tickStretch, Math.abs(posX[i] - posX[i + 1] - OPTIMAL_DISTANCE));
+            }
+            stretch = Math.max(stretch, tickStretch);
+            if (tick >= TICKS - SETTLED_TICKS) {
+                settledMin = Math.min(settledMin, tickStretch);
+                settledMax = Math.max(settledMax, tickStretch);
+            }
+        }
+        return new Result(stretch, settledMax - settledMin, time / TICKS);
+    }
+
+    private static final class Result {
+        final double stretch;
+        /**
+         * How far the largest stretch moved over the last ticks.
+         */
+        final double settledRange;
+        final long nanosPerTick;
+
+        Result(double stretch, double settledRange, long nanosPerTick) {
+            this.stretch = stretch;
+            this.settledRange = settledRange;
+            this.nanosPerTick = nanosPerTick;
+        }
+    }
+}
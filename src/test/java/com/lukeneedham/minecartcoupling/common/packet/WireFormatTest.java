@@ -0,0 +1,71 @@
+package com.lukeneedham.minecartcoupling.common.packet;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WireFormatTest {
+
+    @Test
+    public void versionIsOneByte() {
+        PacketBuffer buffer = new PacketBuffer(Unpooled.buffer());
+        WireFormat.writeVersion(buffer);
+        assertEquals(1, buffer.readableBytes());
+        WireFormat.readVersion(buffer);
+        assertEquals(0, buffer.readableBytes());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsOtherVersion() {
+        PacketBuffer buffer = new PacketBuffer(Unpooled.buffer());
+        buffer.writeByte(WireFormat.VERSION + 1);
+        WireFormat.readVersion(buffer);
+    }
+
+    @Test
+    public void zigZagMapsSmallMagnitudesToSmallValues() {
+        assertEquals(0, WireFormat.encodeZigZag(0));
+        assertEquals(1, WireFormat.encodeZigZag(-1));
+        assertEquals(2, WireFormat.encodeZigZag(1));
+        assertEquals(3, WireFormat.encodeZigZag(-2));
+        assertEquals(0xFFFFFFFE, WireFormat.encodeZigZag(Integer.MAX_VALUE));
+        assertEquals(0xFFFFFFFF, WireFormat.encodeZigZag(Integer.MIN_VALUE));
+        for (int value : new int[]{0, 1, -1, 63, -64, 1000, -1000, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            assertEquals(value, WireFormat.decodeZigZag(WireFormat.encodeZigZag(value)));
+        }
+    }
+
+    @Test
+    public void headerSizes() {
+        // The zigzag value shifted past the type bits has to fit in 7 bits for a single byte
+        assertHeader(1, 0, 0);
+        assertHeader(1, 0, 15);
+        assertHeader(1, 0, -16);
+        assertHeader(2, 0, 16);
+        assertHeader(2, 0, -17);
+        assertHeader(2, 0, 2047);
+        assertHeader(3, 0, 2048);
+        assertHeader(5, 0, Integer.MAX_VALUE);
+        assertHeader(5, 0, Integer.MIN_VALUE);
+    }
+
+    @Test
+    public void headerKeepsAllTypes() {
+        for (int type = 0; type <= WireFormat.TYPE_MASK; type++) {
+            assertHeader(1, type, 15);
+            assertHeader(1, type, -16);
+            assertHeader(5, type, Integer.MIN_VALUE);
+        }
+    }
+
+    private static void assertHeader(int expectedSize, int type, int value) {
+        PacketBuffer buffer = new PacketBuffer(Unpooled.buffer());
+        WireFormat.writeHeader(buffer, type, value);
+        assertEquals("Size of header " + type + ", " + value, expectedSize, buffer.readableBytes());
+        long header = buffer.readVarLong();
+        assertEquals(type, WireFormat.headerType(header));
+        assertEquals(value, WireFormat.headerValue(header));
+    }
+}
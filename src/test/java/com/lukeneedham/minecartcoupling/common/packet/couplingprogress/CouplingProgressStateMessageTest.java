@@ -0,0 +1,52 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingprogress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CouplingProgressStateMessageTest {
+
+    @Test
+    public void smallIdsOfEveryType() {
+        assertSize(3, new CouplingProgressState.Started(5, 7));
+        assertSize(3, new CouplingProgressState.Broken(5, 7));
+        assertSize(3, new CouplingProgressState.Created(5, 7));
+        assertSize(3, new CouplingProgressState.Failed(5, 7));
+    }
+
+    @Test
+    public void largeIdsOfEveryType() {
+        assertSize(7, new CouplingProgressState.Started(100000, 100000));
+        assertSize(7, new CouplingProgressState.Broken(100000, 100000));
+        assertSize(7, new CouplingProgressState.Created(100000, 100000));
+        assertSize(7, new CouplingProgressState.Failed(100000, 100000));
+    }
+
+    @Test
+    public void extremeIdsOfEveryType() {
+        assertSize(11, new CouplingProgressState.Started(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertSize(11, new CouplingProgressState.Broken(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertSize(11, new CouplingProgressState.Created(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertSize(11, new CouplingProgressState.Failed(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertSize(3, new CouplingProgressState.Failed(0, 0));
+    }
+
+    /**
+     * Version byte, then the cart id with the type in its low bits, then the player id.
+     */
+    private static void assertSize(int expectedSize, CouplingProgressState state) {
+        ByteBuf buf = Unpooled.buffer();
+        new CouplingProgressStateMessage(state).toBytes(buf);
+        assertEquals(expectedSize, buf.readableBytes());
+
+        CouplingProgressStateMessage message = new CouplingProgressStateMessage();
+        message.fromBytes(buf);
+        assertEquals(0, buf.readableBytes());
+        assertEquals(state.getClass(), message.state.getClass());
+        assertEquals(state.type, message.state.type);
+        assertEquals(state.cartId, message.state.cartId);
+        assertEquals(state.playerId, message.state.playerId);
+    }
+}
@@ -0,0 +1,238 @@
+package com.lukeneedham.minecartcoupling.common.packet.couplingupdate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CouplingUpdateMessageTest {
+    /**
+     * The largest payload a server can send to a client in one custom packet.
+     */
+    private static final int MAX_PAYLOAD = 1048576;
+
+    @Test
+    public void roundTripsLargeBatch() {
+        List<CouplingUpdate> updates = randomUpdates(new Random(1), 5000, Integer.MAX_VALUE);
+        assertSameUpdates(updates, roundTrip(updates));
+    }
+
+    @Test
+    public void roundTripsNeighbouringCarts() {
+        // A long train coupled and broken in order, where every id is close to the previous one
+        List<CouplingUpdate> updates = new ArrayList<>();
+        for (int id = 1000; id < 4000; id++) {
+            updates.add(new CouplingUpdate.Created(id, id + 1));
+        }
+        for (int id = 4000; id > 1000; id--) {
+            updates.add(new CouplingUpdate.Broken(id, id - 1));
+            updates.add(new CouplingUpdate.AllBroken(id));
+        }
+        assertSameUpdates(updates, roundTrip(updates));
+    }
+
+    @Test
+    public void roundTripsExtremeIds() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        updates.add(new CouplingUpdate.Created(0, Integer.MAX_VALUE));
+        updates.add(new CouplingUpdate.Broken(Integer.MAX_VALUE, 0));
+        updates.add(new CouplingUpdate.AllBroken(0));
+        updates.add(new CouplingUpdate.AllBroken(Integer.MAX_VALUE));
+        updates.add(new CouplingUpdate.Created(Integer.MAX_VALUE, Integer.MAX_VALUE - 1));
+        assertSameUpdates(updates, roundTrip(updates));
+    }
+
+    @Test
+    public void roundTripsEmptyBatch() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        assertSameUpdates(updates, roundTrip(updates));
+    }
+
+    @Test
+    public void splitsAtMaxUpdatesPerMessage() {
+        int max = CouplingUpdateQueue.MAX_UPDATES_PER_MESSAGE;
+        assertEquals(0, CouplingUpdateQueue.split(new ArrayList<>()).size());
+        assertEquals(1, CouplingUpdateQueue.split(randomUpdates(new Random(2), max, 100000)).size());
+        assertEquals(2, CouplingUpdateQueue.split(randomUpdates(new Random(3), max + 1, 100000)).size());
+
+        List<CouplingUpdate> updates = randomUpdates(new Random(4), 2 * max + 17, Integer.MAX_VALUE);
+        List<List<CouplingUpdate>> batches = CouplingUpdateQueue.split(updates);
+        assertEquals(3, batches.size());
+        assertEquals(max, batches.get(0).size());
+        assertEquals(max, batches.get(1).size());
+        assertEquals(17, batches.get(2).size());
+
+        List<CouplingUpdate> received = new ArrayList<>();
+        for (List<CouplingUpdate> batch : batches) {
+            ByteBuf buf = Unpooled.buffer();
+            new CouplingUpdateMessage(batch).toBytes(buf);
+            assertTrue("Message too large: " + buf.readableBytes(), buf.readableBytes() < MAX_PAYLOAD);
+            CouplingUpdateMessage message = new CouplingUpdateMessage();
+            message.fromBytes(buf);
+            assertEquals(0, buf.readableBytes());
+            received.addAll(message.updates);
+        }
+        assertSameUpdates(updates, received);
+    }
+
+    @Test
+    public void fullBatchOfWorstCaseIdsFitsInOnePayload() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < CouplingUpdateQueue.MAX_UPDATES_PER_MESSAGE; i++) {
+            updates.add(i % 2 == 0
+                    ? new CouplingUpdate.Created(0, Integer.MAX_VALUE)
+                    : new CouplingUpdate.Broken(Integer.MAX_VALUE, 0));
+        }
+        ByteBuf buf = Unpooled.buffer();
+        new CouplingUpdateMessage(updates).toBytes(buf);
+        assertTrue("Message too large: " + buf.readableBytes(), buf.readableBytes() < MAX_PAYLOAD);
+    }
+
+    @Test
+    public void emptyBatchSize() {
+        // Version and count
+        assertSize(2, new ArrayList<>());
+    }
+
+    @Test
+    public void smallIdSizes() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        updates.add(new CouplingUpdate.Created(5, 6));
+        assertSize(4, updates);
+        updates.set(0, new CouplingUpdate.Broken(5, 4));
+        assertSize(4, updates);
+        updates.set(0, new CouplingUpdate.AllBroken(5));
+        assertSize(3, updates);
+    }
+
+    @Test
+    public void largeIdSizes() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        // The first id is a delta to 0, of a 2 byte header up to 2047
+        updates.add(new CouplingUpdate.Created(1000, 1001));
+        assertSize(5, updates);
+        updates.set(0, new CouplingUpdate.Created(100000, 100001));
+        assertSize(6, updates);
+        updates.set(0, new CouplingUpdate.AllBroken(Integer.MAX_VALUE));
+        assertSize(7, updates);
+        updates.set(0, new CouplingUpdate.Broken(Integer.MAX_VALUE, 0));
+        assertSize(12, updates);
+        updates.set(0, new CouplingUpdate.Created(0, Integer.MAX_VALUE));
+        assertSize(8, updates);
+    }
+
+    @Test
+    public void zigZagDeltaSizes() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        // The second id is a zigzag varint delta to the first, of a single byte from -64 to 63
+        updates.add(new CouplingUpdate.Created(1000, 1063));
+        assertSize(5, updates);
+        updates.set(0, new CouplingUpdate.Created(1000, 936));
+        assertSize(5, updates);
+        updates.set(0, new CouplingUpdate.Created(1000, 1064));
+        assertSize(6, updates);
+        updates.set(0, new CouplingUpdate.Created(1000, 935));
+        assertSize(6, updates);
+
+        // The first id is a delta to the previous first id, of a single byte header from -16 to 15
+        updates.set(0, new CouplingUpdate.AllBroken(1000));
+        updates.add(new CouplingUpdate.AllBroken(1015));
+        assertSize(5, updates);
+        updates.set(1, new CouplingUpdate.AllBroken(984));
+        assertSize(5, updates);
+        updates.set(1, new CouplingUpdate.AllBroken(1016));
+        assertSize(6, updates);
+        updates.set(1, new CouplingUpdate.AllBroken(983));
+        assertSize(6, updates);
+    }
+
+    @Test
+    public void neighbouringCartsSize() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        for (int id = 1000; id < 1100; id++) {
+            updates.add(new CouplingUpdate.Created(id, id + 1));
+        }
+        // 2 bytes per coupling after the first, which has a 2 byte header
+        assertSize(2 + 3 + 99 * 2, updates);
+    }
+
+    @Test
+    public void fullBatchCountSize() {
+        List<CouplingUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < CouplingUpdateQueue.MAX_UPDATES_PER_MESSAGE; i++) {
+            updates.add(new CouplingUpdate.AllBroken(0));
+        }
+        // Version, a 2 byte count, and a single byte header per record
+        assertSize(1 + 2 + CouplingUpdateQueue.MAX_UPDATES_PER_MESSAGE, updates);
+    }
+
+    private static void assertSize(int expectedSize, List<CouplingUpdate> updates) {
+        ByteBuf buf = Unpooled.buffer();
+        new CouplingUpdateMessage(updates).toBytes(buf);
+        assertEquals(expectedSize, buf.readableBytes());
+        assertSameUpdates(updates, roundTrip(updates));
+    }
+
+    private static List<CouplingUpdate> roundTrip(List<CouplingUpdate> updates) {
+        ByteBuf buf = Unpooled.buffer();
+        new CouplingUpdateMessage(updates).toBytes(buf);
+        CouplingUpdateMessage message = new CouplingUpdateMessage();
+        message.fromBytes(buf);
+        assertEquals("Unread bytes", 0, buf.readableBytes());
+        return message.updates;
+    }
+
+    /**
+     * Mixes all update types, with ids that are sometimes neighbours and sometimes anywhere below the bound.
+     */
+    private static List<CouplingUpdate> randomUpdates(Random random, int count, int idBound) {
+        List<CouplingUpdate> updates = new ArrayList<>(count);
+        int id = random.nextInt(idBound);
+        for (int i = 0; i < count; i++) {
+            id = random.nextBoolean() ? random.nextInt(idBound) : Math.min(id + 1, idBound - 1);
+            int other = random.nextBoolean() ? random.nextInt(idBound) : Math.max(id - 1, 0);
+            switch (random.nextInt(3)) {
+                case 0:
+                    updates.add(new CouplingUpdate.Created(id, other));
+                    break;
+                case 1:
+                    updates.add(new CouplingUpdate.Broken(id, other));
+                    break;
+                default:
+                    updates.add(new CouplingUpdate.AllBroken(id));
+                    break;
+            }
+        }
+        return updates;
+    }
+
+    private static void assertSameUpdates(List<CouplingUpdate> expected, List<CouplingUpdate> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Update " + i, describe(expected.get(i)), describe(actual.get(i)));
+        }
+    }
+
+    private static String describe(CouplingUpdate update) {
+        switch (update.type) {
+            case CouplingUpdate.Created.TYPE: {
+                CouplingUpdate.Created createdUpdate = (CouplingUpdate.Created) update;
+                return "Created " + createdUpdate.cart1Id + " " + createdUpdate.cart2Id;
+            }
+            case CouplingUpdate.Broken.TYPE: {
+                CouplingUpdate.Broken brokenUpdate = (CouplingUpdate.Broken) update;
+                return "Broken " + brokenUpdate.cart1Id + " " + brokenUpdate.cart2Id;
+            }
+            case CouplingUpdate.AllBroken.TYPE: {
+                return "AllBroken " + ((CouplingUpdate.AllBroken) update).cartId;
+            }
+        }
+        return "Unknown " + update.type;
+    }
+}